@@ -0,0 +1,92 @@
+package asia.ivity.android.tiledscrollview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * PNG decode throughput on the tiles of the sample app, with the JVM's own decoder. Measures
+ * how tile size and compression affect decoding independently of any device; the numbers are
+ * not those of <code>BitmapFactory</code>.
+ * <p/>
+ * Tiles are read from <code>../sample/assets</code>, or the directory in the
+ * <code>benchmarks.assets</code> system property.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PngDecodeBenchmark {
+    @Param({"tiger400", "tiger800", "tiger1600"})
+    public String level;
+
+    private byte[][] mTiles;
+    private int mIndex;
+
+    @Setup
+    public void setUp() throws IOException {
+        final File dir = new File(System.getProperty("benchmarks.assets", "../sample/assets"), level);
+        final File[] files = dir.listFiles();
+        if (files == null || files.length == 0) {
+            throw new IOException("No tiles found in " + dir.getAbsolutePath());
+        }
+        Arrays.sort(files);
+
+        final List<byte[]> tiles = new ArrayList<byte[]>();
+        for (File file : files) {
+            if (file.getName().endsWith(".png")) {
+                tiles.add(readFully(file));
+            }
+        }
+        mTiles = tiles.toArray(new byte[tiles.size()][]);
+
+        // The tiles are decoded once per call, without disk caching in between.
+        ImageIO.setUseCache(false);
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        final InputStream in = new FileInputStream(file);
+        try {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+            final byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    @Benchmark
+    public BufferedImage decode() throws IOException {
+        mIndex = (mIndex + 1) % mTiles.length;
+        return ImageIO.read(new ByteArrayInputStream(mTiles[mIndex]));
+    }
+}
@@ -0,0 +1,114 @@
+package asia.ivity.android.tiledscrollview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The work {@link TileLoadEngine} does on every scroll frame: computing the visible tile range
+ * and checking each tile in it against the attached tiles. All tiles are attached, as when
+ * scrolling within already loaded tiles, so nothing but the grid walk is measured.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileGridBenchmark {
+    private static final int VIEW_WIDTH = 1280;
+    private static final int VIEW_HEIGHT = 800;
+    private static final int POSITIONS = 1024;
+
+    private final ConfigurationSet mSet =
+            new ConfigurationSet("tiles/crop_%col%_%row%.png", 256, 256, 16384, 16384);
+
+    private final int[] mScrollX = new int[POSITIONS];
+    private final int[] mScrollY = new int[POSITIONS];
+    private int mPosition;
+    private final TileRange mRange = new TileRange();
+
+    private final TileMap<Object> mTileMap = new TileMap<Object>();
+    private final Map<Tile, Object> mHashMap = new HashMap<Tile, Object>();
+
+    @Setup
+    public void setUp() {
+        // A diagonal fling across the image, one position per frame.
+        for (int i = 0; i < POSITIONS; i++) {
+            mScrollX[i] = i * (mSet.getImageWidth() - VIEW_WIDTH) / POSITIONS;
+            mScrollY[i] = i * (mSet.getImageHeight() - VIEW_HEIGHT) / POSITIONS;
+        }
+
+        final Object view = new Object();
+        for (int row = 0; row < mSet.getRowCount(); row++) {
+            for (int col = 0; col < mSet.getColumnCount(); col++) {
+                mTileMap.put(Tile.key(0, col, row), view);
+                mHashMap.put(new Tile(0, col, row), view);
+            }
+        }
+    }
+
+    private int nextPosition() {
+        mPosition = (mPosition + 1) & (POSITIONS - 1);
+        return mPosition;
+    }
+
+    private TileRange tileRange(int scrollX, int scrollY) {
+        TileLoadEngine.computeTileRange(mSet, scrollX, scrollY, VIEW_WIDTH, VIEW_HEIGHT, mRange);
+        return mRange;
+    }
+
+    @Benchmark
+    public TileRange range() {
+        final int position = nextPosition();
+        return tileRange(mScrollX[position], mScrollY[position]);
+    }
+
+    /** The grid walk over packed keys, as done now. */
+    @Benchmark
+    public int walkTileMap() {
+        final int position = nextPosition();
+        final TileRange range = tileRange(mScrollX[position], mScrollY[position]);
+
+        int attached = 0;
+        for (int row = range.top; row <= range.bottom; row++) {
+            for (int col = range.left; col <= range.right; col++) {
+                if (mTileMap.containsKey(Tile.key(0, col, row))) {
+                    attached++;
+                }
+            }
+        }
+        return attached;
+    }
+
+    /** The grid walk creating a tile per cell and looking it up twice, as done before. */
+    @Benchmark
+    public int walkHashMap() {
+        final int position = nextPosition();
+        final TileRange range = tileRange(mScrollX[position], mScrollY[position]);
+
+        int attached = 0;
+        for (int row = range.top; row <= range.bottom; row++) {
+            for (int col = range.left; col <= range.right; col++) {
+                final Tile tile = new Tile(0, col, row);
+                if (mHashMap.containsKey(tile) && mHashMap.get(tile) != null) {
+                    attached++;
+                }
+            }
+        }
+        return attached;
+    }
+}
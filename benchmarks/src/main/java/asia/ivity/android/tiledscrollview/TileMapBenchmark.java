@@ -0,0 +1,115 @@
+package asia.ivity.android.tiledscrollview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tile hashing and lookups in {@link TileMap}, compared to the
+ * <code>ConcurrentHashMap&lt;Tile, ?&gt;</code> attached tiles were kept in before. Half of the
+ * looked up tiles are present.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TileMapBenchmark {
+    private static final int LOOKUPS = 4096;
+
+    /** Number of tiles in the map, from a phone screen to a fully cached level. */
+    @Param({"64", "1024", "16384"})
+    public int size;
+
+    private final TileMap<Object> mTileMap = new TileMap<Object>();
+    private final Map<Tile, Object> mHashMap = new ConcurrentHashMap<Tile, Object>();
+
+    private int[] mCols;
+    private int[] mRows;
+    private long[] mKeys;
+    private int mIndex;
+
+    @Setup
+    public void setUp() {
+        final int side = (int) Math.ceil(Math.sqrt(size * 2));
+        final Random random = new Random(42);
+        final Object value = new Object();
+
+        for (int i = 0; i < size; i++) {
+            final int col = random.nextInt(side);
+            final int row = random.nextInt(side);
+            mTileMap.put(Tile.key(1, col, row), value);
+            mHashMap.put(new Tile(1, col, row), value);
+        }
+
+        mCols = new int[LOOKUPS];
+        mRows = new int[LOOKUPS];
+        mKeys = new long[LOOKUPS];
+        for (int i = 0; i < LOOKUPS; i++) {
+            mCols[i] = random.nextInt(side);
+            mRows[i] = random.nextInt(side);
+            mKeys[i] = Tile.key(1, mCols[i], mRows[i]);
+        }
+    }
+
+    private int next() {
+        mIndex = (mIndex + 1) & (LOOKUPS - 1);
+        return mIndex;
+    }
+
+    @Benchmark
+    public long key() {
+        final int i = next();
+        return Tile.key(1, mCols[i], mRows[i]);
+    }
+
+    @Benchmark
+    public int hashCodeOfTile() {
+        final int i = next();
+        return new Tile(1, mCols[i], mRows[i]).hashCode();
+    }
+
+    @Benchmark
+    public Object getTileMap() {
+        final int i = next();
+        return mTileMap.get(Tile.key(1, mCols[i], mRows[i]));
+    }
+
+    @Benchmark
+    public Object getHashMap() {
+        final int i = next();
+        return mHashMap.get(new Tile(1, mCols[i], mRows[i]));
+    }
+
+    /** Attaching and detaching a tile, as while scrolling. */
+    @Benchmark
+    public Object putRemoveTileMap() {
+        final long key = mKeys[next()] | (2L << 48);
+        mTileMap.put(key, this);
+        return mTileMap.remove(key);
+    }
+
+    @Benchmark
+    public Object putRemoveHashMap() {
+        final int i = next();
+        final Tile tile = new Tile(2, mCols[i], mRows[i]);
+        mHashMap.put(tile, this);
+        return mHashMap.remove(tile);
+    }
+}
@@ -0,0 +1,50 @@
+package asia.ivity.android.tiledscrollview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building tile paths from a {@link ConfigurationSet}'s file pattern: the cached lookup done on
+ * every decode, and building a path from scratch as on a tile's first decode.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TilePathBenchmark {
+    private final ConfigurationSet mSet =
+            new ConfigurationSet("tiger1600/crop_%col%_%row%.png", 100, 100, 1600, 1200);
+
+    private int mIndex;
+
+    private int next() {
+        mIndex = (mIndex + 1) % (mSet.getColumnCount() * mSet.getRowCount());
+        return mIndex;
+    }
+
+    @Benchmark
+    public String cached() {
+        final int i = next();
+        return mSet.getTilePath(i % mSet.getColumnCount(), i / mSet.getColumnCount());
+    }
+
+    @Benchmark
+    public String uncached() {
+        final int i = next();
+        return mSet.getFilePattern().replace("%col%", Integer.toString(i / mSet.getColumnCount()))
+                .replace("%row%", Integer.toString(i % mSet.getColumnCount()));
+    }
+}
@@ -0,0 +1,56 @@
+package asia.ivity.android.tiledscrollview;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The bookkeeping cost of a whole fling in {@link TileLoadEngine}, replayed by
+ * {@link TraceReplayer}. Decoding itself is simulated and costs nothing here; run
+ * <code>TraceReplayer</code> directly for the tiles decoded and memory used by a trace.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TraceReplayBenchmark {
+    @Param({"128", "256", "512"})
+    public int tileSize;
+
+    /** Tiles requested per scroll event, 0 to fill the viewport once scrolling settles. */
+    @Param({"0", "8"})
+    public int tilesPerFrame;
+
+    private TraceReplayer mReplayer;
+    private List<TraceReplayer.Event> mFling;
+
+    @Setup
+    public void setUp() {
+        final ConfigurationSet set = new ConfigurationSet("%col%_%row%", tileSize, tileSize, 16384, 16384);
+
+        mReplayer = new TraceReplayer(set, TraceReplayer.DEFAULT_VIEW_WIDTH, TraceReplayer.DEFAULT_VIEW_HEIGHT);
+        mReplayer.setTilesPerFrame(tilesPerFrame);
+        mFling = TraceReplayer.fling(set, TraceReplayer.DEFAULT_VIEW_WIDTH, TraceReplayer.DEFAULT_VIEW_HEIGHT,
+                0, 0, 6000, 8000);
+    }
+
+    @Benchmark
+    public TraceReplayer.Result replayFling() {
+        return mReplayer.replay(mFling);
+    }
+}
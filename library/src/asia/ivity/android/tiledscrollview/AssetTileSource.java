@@ -0,0 +1,34 @@
+package asia.ivity.android.tiledscrollview;
+
+import android.content.res.AssetManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads tiles from the assets of the APK. Used for every configuration set without a source
+ * of its own.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+public class AssetTileSource extends TileSource {
+    private final AssetManager mAssets;
+
+    public AssetTileSource(AssetManager assets) {
+        mAssets = assets;
+    }
+
+    @Override
+    protected InputStream openPath(String path) throws IOException {
+        try {
+            return mAssets.open(path);
+        } catch (IOException e) {
+            throw new IOException("Cannot open asset at:" + path);
+        }
+    }
+
+    @Override
+    public String getIdentity() {
+        return "asset:";
+    }
+}
@@ -0,0 +1,132 @@
+package asia.ivity.android.tiledscrollview;
+
+import android.graphics.Bitmap;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+
+/**
+ * Bounded pool of mutable bitmaps that are no longer displayed, grouped by size and config.
+ * <p/>
+ * Tile decoding takes bitmaps from here for <code>BitmapFactory.Options.inBitmap</code>, so a
+ * steady stream of same-sized tiles can be decoded without allocating new pixel memory. Safe to
+ * use from several threads.
+ * <p/>
+ * Bitmaps that may still be on screen are {@link #retire(Bitmap) retired} instead. They only
+ * become available two frames later, see {@link #onFrameStarting()}: the views that may have
+ * drawn them are redrawn without them in the first frame, which has been handed to the renderer
+ * once the second one starts.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+class BitmapPool {
+    private final int mMaxBytes;
+    private final SparseArray<ArrayList<Bitmap>> mBitmaps = new SparseArray<ArrayList<Bitmap>>();
+    private int mSize;
+
+    /** Retired bitmaps, waiting for the next frame and the one after it respectively. */
+    private ArrayList<Bitmap> mRetired = new ArrayList<Bitmap>();
+    private ArrayList<Bitmap> mCooling = new ArrayList<Bitmap>();
+    private int mRetiredSize;
+
+    BitmapPool(int maxBytes) {
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return a pooled bitmap of exactly the given size and config, or <code>null</code>
+     */
+    synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        final ArrayList<Bitmap> bitmaps = mBitmaps.get(key(width, height, config));
+
+        if (bitmaps == null || bitmaps.isEmpty()) {
+            return null;
+        }
+
+        final Bitmap bitmap = bitmaps.remove(bitmaps.size() - 1);
+        mSize -= TileCache.byteCount(bitmap);
+        return bitmap;
+    }
+
+    /**
+     * Offers a bitmap for reuse. The caller must not touch it afterwards. Immutable bitmaps and
+     * bitmaps that would exceed the byte budget are ignored.
+     */
+    synchronized void put(Bitmap bitmap) {
+        if (bitmap == null || !bitmap.isMutable() || bitmap.isRecycled() || bitmap.getConfig() == null) {
+            return;
+        }
+
+        final int bytes = TileCache.byteCount(bitmap);
+        if (mSize + bytes > mMaxBytes) {
+            return;
+        }
+
+        final int key = key(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        ArrayList<Bitmap> bitmaps = mBitmaps.get(key);
+        if (bitmaps == null) {
+            bitmaps = new ArrayList<Bitmap>();
+            mBitmaps.put(key, bitmaps);
+        }
+
+        bitmaps.add(bitmap);
+        mSize += bytes;
+    }
+
+    /**
+     * Offers a bitmap that left the tile cache, but may still be drawn. It is pooled two frames
+     * later, unless the retired bitmaps already exceed the byte budget.
+     */
+    synchronized void retire(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+
+        final int bytes = TileCache.byteCount(bitmap);
+        if (mRetiredSize + bytes > mMaxBytes) {
+            return;
+        }
+
+        mRetired.add(bitmap);
+        mRetiredSize += bytes;
+    }
+
+    /**
+     * Advances the retired bitmaps by one frame. Must be called on the UI thread before each
+     * frame of the views that draw cached bitmaps.
+     *
+     * @return whether bitmaps were retired since the previous frame. The views drawing cached
+     *         bitmaps must then be redrawn in this frame, so they stop referencing them.
+     */
+    synchronized boolean onFrameStarting() {
+        for (int i = 0, n = mCooling.size(); i < n; i++) {
+            final Bitmap bitmap = mCooling.get(i);
+            mRetiredSize -= TileCache.byteCount(bitmap);
+            put(bitmap);
+        }
+        mCooling.clear();
+
+        final ArrayList<Bitmap> cooling = mCooling;
+        mCooling = mRetired;
+        mRetired = cooling;
+
+        return !mCooling.isEmpty();
+    }
+
+    synchronized void clear() {
+        mBitmaps.clear();
+        mSize = 0;
+        mRetired.clear();
+        mCooling.clear();
+        mRetiredSize = 0;
+    }
+
+    /** @return bytes currently held by pooled bitmaps. */
+    synchronized int size() {
+        return mSize;
+    }
+
+    private static int key(int width, int height, Bitmap.Config config) {
+        return (config.ordinal() << 28) | ((width & 0x3fff) << 14) | (height & 0x3fff);
+    }
+}
@@ -2,6 +2,11 @@ package asia.ivity.android.tiledscrollview;
 
 /**
 * Configures the ScrollView. A configuration set is depending on the zoom level it's in.
+* <p/>
+* If the file pattern contains neither <code>%col%</code> nor <code>%row%</code>, it names one
+* large image that tiles are cut from on the fly instead.
+* <p/>
+* Files are read from the APK assets, unless a {@link TileSource} is given.
 *
 * @author Sebastian Roth <sebastian.roth@gmail.com>
 */
@@ -11,8 +16,17 @@ public class ConfigurationSet {
     int tileHeight;
     int imageWidth;
     int imageHeight;
+    TileSource tileSource;
+
+    /** Tile paths built so far, by row and column. Filled lazily, possibly by several threads. */
+    private volatile String[] tilePaths;
 
     public ConfigurationSet(String filePattern, int tileWidth, int tileHeight, int imageWidth, int imageHeight) {
+        this(null, filePattern, tileWidth, tileHeight, imageWidth, imageHeight);
+    }
+
+    public ConfigurationSet(TileSource tileSource, String filePattern, int tileWidth, int tileHeight, int imageWidth, int imageHeight) {
+        this.tileSource = tileSource;
         this.filePattern = filePattern;
         this.tileWidth = tileWidth;
         this.tileHeight = tileHeight;
@@ -20,6 +34,11 @@ public class ConfigurationSet {
         this.imageHeight = imageHeight;
     }
 
+    /** @return the source tiles are read from, or <code>null</code> for the APK assets. */
+    public TileSource getTileSource() {
+        return tileSource;
+    }
+
     public String getFilePattern() {
         return filePattern;
     }
@@ -39,4 +58,69 @@ public class ConfigurationSet {
     public int getImageHeight() {
         return imageHeight;
     }
+
+    /** @return whether tiles are cut from a single source image instead of separate files. */
+    public boolean isRegionSource() {
+        return !filePattern.contains("%col%") && !filePattern.contains("%row%");
+    }
+
+    int getColumnCount() {
+        return (imageWidth + tileWidth - 1) / tileWidth;
+    }
+
+    int getRowCount() {
+        return (imageHeight + tileHeight - 1) / tileHeight;
+    }
+
+    /** @return the column containing the given x coordinate, clamped to the image. */
+    int getColumnAt(int x) {
+        return Math.max(0, Math.min(getColumnCount() - 1, x / tileWidth));
+    }
+
+    /** @return the row containing the given y coordinate, clamped to the image. */
+    int getRowAt(int y) {
+        return Math.max(0, Math.min(getRowCount() - 1, y / tileHeight));
+    }
+
+    /** @return the width of the tiles in the given column, which is smaller at the right edge. */
+    int getTileWidthAt(int x) {
+        return Math.min(tileWidth, imageWidth - x * tileWidth);
+    }
+
+    /** @return the height of the tiles in the given row, which is smaller at the bottom edge. */
+    int getTileHeightAt(int y) {
+        return Math.min(tileHeight, imageHeight - y * tileHeight);
+    }
+
+    /**
+     * @return the file holding tile (x, y). Each path is built once and then served from a cache,
+     *         so repeated requests for a tile do not allocate.
+     */
+    String getTilePath(int x, int y) {
+        final int columns = getColumnCount();
+        final int rows = getRowCount();
+        if (x < 0 || y < 0 || x >= columns || y >= rows) {
+            return buildTilePath(x, y);
+        }
+
+        String[] paths = tilePaths;
+        if (paths == null) {
+            // Threads racing here only build a few paths twice.
+            paths = new String[columns * rows];
+            tilePaths = paths;
+        }
+
+        final int index = y * columns + x;
+        String path = paths[index];
+        if (path == null) {
+            path = buildTilePath(x, y);
+            paths[index] = path;
+        }
+        return path;
+    }
+
+    private String buildTilePath(int x, int y) {
+        return filePattern.replace("%col%", Integer.toString(y))
+                .replace("%row%", Integer.toString(x));
+    }
 }
@@ -0,0 +1,490 @@
+package asia.ivity.android.tiledscrollview;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps decoded tiles on disk, behind the in-memory {@link TileCache}.
+ * <p/>
+ * Tiles are stored as raw pixels, so reading one back is a plain file read plus a pixel copy: no
+ * tile source is opened and nothing is decompressed. The cache is bounded in bytes and trimmed
+ * in least recently used order.
+ * <p/>
+ * Every change is appended to a journal, which restores the usage order after a restart. Entries
+ * are written to a temporary file first and renamed when complete, so a crash never leaves a
+ * partial tile behind. On startup the journal is reconciled with the directory: entries without
+ * a file are dropped, complete files missing from the journal are adopted and temporary files are
+ * deleted.
+ * <p/>
+ * The directory is read lazily on first use, on a decode thread.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+public class DiskTileCache {
+    private static final String TAG = DiskTileCache.class.getSimpleName();
+
+    public static final long DEFAULT_MAX_BYTES = 32 * 1024 * 1024;
+
+    static final String DEFAULT_DIRECTORY = "tiles";
+    static final String JOURNAL = "journal";
+    static final String TMP_SUFFIX = ".tmp";
+
+    private static final String JOURNAL_TMP = JOURNAL + TMP_SUFFIX;
+    private static final String PUT = "PUT";
+    private static final String READ = "READ";
+    private static final String DEL = "DEL";
+
+    /** Header of a tile file: magic, width, height and bitmap config. */
+    private static final int MAGIC = 0x54525057;
+    private static final int HEADER_BYTES = 16;
+
+    /** The journal is rewritten once it holds this many redundant lines. */
+    private static final int COMPACT_THRESHOLD = 2000;
+
+    private final File mDirectory;
+    private final long mMaxBytes;
+
+    /** Entry sizes in bytes, in access order. */
+    private final LinkedHashMap<String, Long> mEntries = new LinkedHashMap<String, Long>(0, 0.75f, true);
+    private Writer mJournal;
+    private boolean mOpened;
+    private int mRedundantLines;
+    private long mSize;
+
+    private int mHitCount;
+    private int mMissCount;
+
+    private static final ThreadLocal<ByteBuffer> sBuffers = new ThreadLocal<ByteBuffer>();
+
+    /**
+     * @return a cache in the <code>tiles</code> directory of the application cache directory.
+     */
+    public static DiskTileCache open(Context context, long maxBytes) {
+        return new DiskTileCache(new File(context.getCacheDir(), DEFAULT_DIRECTORY), maxBytes);
+    }
+
+    public DiskTileCache(File directory, long maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+
+        mDirectory = directory;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * @return key of a tile, unique for the source, image and tile.
+     */
+    static String keyFor(TileSource source, ConfigurationSet set, Tile tile) {
+        final String image = source.getClass().getName() + '|' + source.getIdentity() + '|'
+                + set.getFilePattern() + '|'
+                + set.getTileWidth() + 'x' + set.getTileHeight() + '|'
+                + set.getImageWidth() + 'x' + set.getImageHeight();
+
+        return md5Hex(image) + '-' + tile.x + '-' + tile.y;
+    }
+
+    private static String md5Hex(String s) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("MD5").digest(s.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+
+        final StringBuilder hex = new StringBuilder(digest.length * 2);
+        for (byte b : digest) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Reads a tile back. The bitmap is taken from the pool if one of the right size is idle.
+     *
+     * @return the tile, or <code>null</code> if it is not cached.
+     */
+    Bitmap get(String key, BitmapPool pool) {
+        synchronized (this) {
+            ensureOpened();
+
+            if (mEntries.get(key) == null) {
+                mMissCount++;
+                return null;
+            }
+
+            appendJournal(READ, key, -1);
+        }
+
+        final Bitmap bitmap = readTile(new File(mDirectory, key), pool);
+
+        synchronized (this) {
+            if (bitmap == null) {
+                // The file vanished or is damaged, forget about it.
+                mMissCount++;
+                removeEntry(key);
+            } else {
+                mHitCount++;
+            }
+        }
+
+        return bitmap;
+    }
+
+    /**
+     * Stores a tile, replacing an older copy. Failures are logged and otherwise ignored.
+     */
+    void put(String key, Bitmap bitmap) {
+        if (bitmap.getConfig() == null) {
+            return;
+        }
+
+        synchronized (this) {
+            ensureOpened();
+            if (mJournal == null) {
+                return;
+            }
+        }
+
+        final File tmp = new File(mDirectory, key + TMP_SUFFIX + Thread.currentThread().getId());
+        final File file = new File(mDirectory, key);
+
+        try {
+            writeTile(tmp, bitmap);
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot store tile " + key, e);
+            tmp.delete();
+            return;
+        }
+
+        synchronized (this) {
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                return;
+            }
+
+            final Long previous = mEntries.put(key, file.length());
+            if (previous != null) {
+                mSize -= previous;
+                mRedundantLines++;
+            }
+            mSize += file.length();
+            appendJournal(PUT, key, file.length());
+
+            trimToSize();
+        }
+    }
+
+    /**
+     * Deletes all cached tiles.
+     */
+    public synchronized void clear() {
+        ensureOpened();
+
+        for (String key : new ArrayList<String>(mEntries.keySet())) {
+            removeEntry(key);
+        }
+        rebuildJournal();
+    }
+
+    /** @return bytes used by cached tiles. */
+    public synchronized long size() {
+        return mSize;
+    }
+
+    public long maxSize() {
+        return mMaxBytes;
+    }
+
+    public synchronized int hitCount() {
+        return mHitCount;
+    }
+
+    public synchronized int missCount() {
+        return mMissCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        final int accesses = mHitCount + mMissCount;
+        final int hitPercent = accesses != 0 ? (100 * mHitCount / accesses) : 0;
+        return "DiskTileCache[size=" + mSize + ",maxSize=" + mMaxBytes + ",hits=" + mHitCount
+                + ",misses=" + mMissCount + ",hitRate=" + hitPercent + "%]";
+    }
+
+    private void ensureOpened() {
+        if (mOpened) {
+            return;
+        }
+        mOpened = true;
+
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            Log.w(TAG, "Cannot create " + mDirectory + ", disk cache disabled");
+            return;
+        }
+
+        readJournal();
+        reconcile();
+        rebuildJournal();
+        trimToSize();
+    }
+
+    /**
+     * Replays the journal. A torn last line, left by a crash, is ignored.
+     */
+    private void readJournal() {
+        final File journal = new File(mDirectory, JOURNAL);
+        if (!journal.exists()) {
+            return;
+        }
+
+        try {
+            final BufferedReader reader = new BufferedReader(new FileReader(journal));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final String[] parts = line.split(" ");
+                    if (parts.length == 3 && PUT.equals(parts[0])) {
+                        try {
+                            mEntries.put(parts[1], Long.parseLong(parts[2]));
+                        } catch (NumberFormatException e) {
+                            // Torn line.
+                        }
+                    } else if (parts.length == 2 && READ.equals(parts[0])) {
+                        mEntries.get(parts[1]);
+                    } else if (parts.length == 2 && DEL.equals(parts[0])) {
+                        mEntries.remove(parts[1]);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot read journal, recovering from directory", e);
+        }
+    }
+
+    /**
+     * Matches the entries with the files actually present.
+     */
+    private void reconcile() {
+        final Iterator<Map.Entry<String, Long>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            final Map.Entry<String, Long> entry = it.next();
+            final File file = new File(mDirectory, entry.getKey());
+            if (!file.isFile()) {
+                it.remove();
+            } else {
+                entry.setValue(file.length());
+            }
+        }
+
+        final String[] names = mDirectory.list();
+        final List<String> adopted = new ArrayList<String>();
+        if (names != null) {
+            for (String name : names) {
+                if (name.equals(JOURNAL)) {
+                    continue;
+                }
+                if (name.contains(TMP_SUFFIX)) {
+                    new File(mDirectory, name).delete();
+                } else if (!mEntries.containsKey(name)) {
+                    adopted.add(name);
+                }
+            }
+        }
+
+        // Tiles written just before a crash count as least recently used.
+        final LinkedHashMap<String, Long> journaled = new LinkedHashMap<String, Long>(mEntries);
+        mEntries.clear();
+        for (String name : adopted) {
+            mEntries.put(name, new File(mDirectory, name).length());
+        }
+        mEntries.putAll(journaled);
+
+        mSize = 0;
+        for (Long size : mEntries.values()) {
+            mSize += size;
+        }
+    }
+
+    /**
+     * Writes a compact journal holding one line per entry, replacing the old one atomically.
+     */
+    private void rebuildJournal() {
+        closeJournal();
+
+        final File tmp = new File(mDirectory, JOURNAL_TMP);
+        try {
+            final Writer writer = new BufferedWriter(new FileWriter(tmp));
+            try {
+                for (Map.Entry<String, Long> entry : mEntries.entrySet()) {
+                    writer.write(PUT + ' ' + entry.getKey() + ' ' + entry.getValue() + '\n');
+                }
+            } finally {
+                writer.close();
+            }
+
+            if (!tmp.renameTo(new File(mDirectory, JOURNAL))) {
+                throw new IOException("Cannot replace journal");
+            }
+
+            mJournal = new BufferedWriter(new OutputStreamWriter(
+                    new FileOutputStream(new File(mDirectory, JOURNAL), true)));
+            mRedundantLines = 0;
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot write journal, disk cache disabled", e);
+            mJournal = null;
+        }
+    }
+
+    private void appendJournal(String op, String key, long size) {
+        if (mJournal == null) {
+            return;
+        }
+
+        try {
+            mJournal.write(size >= 0 ? op + ' ' + key + ' ' + size + '\n' : op + ' ' + key + '\n');
+            mJournal.flush();
+        } catch (IOException e) {
+            Log.w(TAG, "Cannot append to journal", e);
+        }
+
+        if (!PUT.equals(op)) {
+            mRedundantLines++;
+        }
+        if (mRedundantLines > COMPACT_THRESHOLD && mRedundantLines > mEntries.size()) {
+            rebuildJournal();
+        }
+    }
+
+    private void closeJournal() {
+        if (mJournal != null) {
+            try {
+                mJournal.close();
+            } catch (IOException e) {
+                // Ignore, the journal is rewritten anyway.
+            }
+            mJournal = null;
+        }
+    }
+
+    private void removeEntry(String key) {
+        final Long size = mEntries.remove(key);
+        if (size != null) {
+            mSize -= size;
+            new File(mDirectory, key).delete();
+            appendJournal(DEL, key, -1);
+        }
+    }
+
+    private void trimToSize() {
+        while (mSize > mMaxBytes && !mEntries.isEmpty()) {
+            removeEntry(mEntries.keySet().iterator().next());
+        }
+    }
+
+    private static ByteBuffer getBuffer(int capacity) {
+        ByteBuffer buffer = sBuffers.get();
+        if (buffer == null || buffer.capacity() < capacity) {
+            buffer = ByteBuffer.allocate(capacity);
+            sBuffers.set(buffer);
+        }
+        buffer.clear();
+        buffer.limit(capacity);
+        return buffer;
+    }
+
+    private static void writeTile(File file, Bitmap bitmap) throws IOException {
+        final int pixelBytes = bitmap.getRowBytes() * bitmap.getHeight();
+        final ByteBuffer buffer = getBuffer(HEADER_BYTES + pixelBytes);
+
+        buffer.putInt(MAGIC);
+        buffer.putInt(bitmap.getWidth());
+        buffer.putInt(bitmap.getHeight());
+        buffer.putInt(bitmap.getConfig().ordinal());
+        bitmap.copyPixelsToBuffer(buffer);
+        buffer.flip();
+
+        final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            while (buffer.hasRemaining()) {
+                raf.getChannel().write(buffer);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static Bitmap readTile(File file, BitmapPool pool) {
+        try {
+            final RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                final long length = raf.length();
+                if (length < HEADER_BYTES || length > Integer.MAX_VALUE) {
+                    return null;
+                }
+
+                final ByteBuffer buffer = getBuffer((int) length);
+                while (buffer.hasRemaining()) {
+                    if (raf.getChannel().read(buffer) < 0) {
+                        return null;
+                    }
+                }
+                buffer.flip();
+
+                if (buffer.getInt() != MAGIC) {
+                    return null;
+                }
+
+                final int width = buffer.getInt();
+                final int height = buffer.getInt();
+                final int configIndex = buffer.getInt();
+                final Bitmap.Config[] configs = Bitmap.Config.values();
+                if (width <= 0 || height <= 0 || configIndex < 0 || configIndex >= configs.length) {
+                    return null;
+                }
+
+                Bitmap bitmap = pool.get(width, height, configs[configIndex]);
+                if (bitmap == null) {
+                    bitmap = Bitmap.createBitmap(width, height, configs[configIndex]);
+                }
+
+                if (buffer.remaining() < bitmap.getRowBytes() * bitmap.getHeight()) {
+                    pool.put(bitmap);
+                    return null;
+                }
+
+                bitmap.copyPixelsFromBuffer(buffer);
+                return bitmap;
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package asia.ivity.android.tiledscrollview;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads tiles from a directory on the file system, e.g. tiles downloaded to external storage.
+ * File patterns are resolved relative to that directory.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+public class FileTileSource extends TileSource {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final File mBaseDir;
+
+    public FileTileSource(File baseDir) {
+        mBaseDir = baseDir;
+    }
+
+    @Override
+    protected InputStream openPath(String path) throws IOException {
+        return new BufferedInputStream(new FileInputStream(new File(mBaseDir, path)), BUFFER_SIZE);
+    }
+
+    @Override
+    public String getIdentity() {
+        return "file:" + mBaseDir.getAbsolutePath();
+    }
+}
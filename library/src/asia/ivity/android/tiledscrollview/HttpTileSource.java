@@ -0,0 +1,80 @@
+package asia.ivity.android.tiledscrollview;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Downloads tiles from a server. File patterns are appended to a base URL.
+ * <p/>
+ * The actual transfer goes through a {@link Transport}, which can be replaced to plug in another
+ * HTTP stack or to serve canned responses without a network. Tiles are read completely before
+ * they are decoded, so the reported latency covers the whole transfer.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+public class HttpTileSource extends TileSource {
+    /** Fetches the body of a URL. */
+    public interface Transport {
+        byte[] fetch(String url) throws IOException;
+    }
+
+    private final String mBaseUrl;
+    private final Transport mTransport;
+
+    public HttpTileSource(String baseUrl) {
+        this(baseUrl, new UrlConnectionTransport());
+    }
+
+    public HttpTileSource(String baseUrl, Transport transport) {
+        mBaseUrl = baseUrl;
+        mTransport = transport;
+    }
+
+    @Override
+    protected InputStream openPath(String path) throws IOException {
+        return new ByteArrayInputStream(mTransport.fetch(mBaseUrl + path));
+    }
+
+    @Override
+    public String getIdentity() {
+        return mBaseUrl;
+    }
+
+    /** Default transport based on {@link HttpURLConnection}. */
+    public static class UrlConnectionTransport implements Transport {
+        static final int TIMEOUT_MILLIS = 15000;
+
+        @Override
+        public byte[] fetch(String url) throws IOException {
+            final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+            connection.setConnectTimeout(TIMEOUT_MILLIS);
+            connection.setReadTimeout(TIMEOUT_MILLIS);
+
+            try {
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    throw new IOException("Cannot fetch " + url + ": HTTP " + connection.getResponseCode());
+                }
+
+                final InputStream is = connection.getInputStream();
+                try {
+                    final ByteArrayOutputStream out = new ByteArrayOutputStream(
+                            Math.max(connection.getContentLength(), 1024));
+                    final byte[] buffer = new byte[8 * 1024];
+                    int read;
+                    while ((read = is.read(buffer)) != -1) {
+                        out.write(buffer, 0, read);
+                    }
+                    return out.toByteArray();
+                } finally {
+                    is.close();
+                }
+            } finally {
+                connection.disconnect();
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package asia.ivity.android.tiledscrollview;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Markers shown as one item because they are too close together at the current zoom level.
+ * Its position is the center of the contained markers, in the coordinates of zoom level 0.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+public class MarkerCluster {
+    private final List<TiledScrollViewWorker.Marker> mMarkers = new ArrayList<TiledScrollViewWorker.Marker>();
+    private long mSumX;
+    private long mSumY;
+
+    void add(TiledScrollViewWorker.Marker marker) {
+        mMarkers.add(marker);
+        mSumX += marker.getX();
+        mSumY += marker.getY();
+    }
+
+    public int getX() {
+        return (int) (mSumX / mMarkers.size());
+    }
+
+    public int getY() {
+        return (int) (mSumY / mMarkers.size());
+    }
+
+    public int getCount() {
+        return mMarkers.size();
+    }
+
+    public List<TiledScrollViewWorker.Marker> getMarkers() {
+        return Collections.unmodifiableList(mMarkers);
+    }
+
+    @Override
+    public String toString() {
+        return "MarkerCluster{" +
+                "x=" + getX() +
+                ", y=" + getY() +
+                ", count=" + getCount() +
+                '}';
+    }
+}
@@ -0,0 +1,176 @@
+package asia.ivity.android.tiledscrollview;
+
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Spatial index of markers, so only markers within the viewport need to be looked at.
+ * <p/>
+ * Markers are kept in buckets of a uniform grid over zoom level 0. A query only visits the
+ * buckets overlapping its rectangle. Clusters are built per zoom level on first use and dropped
+ * whenever markers change.
+ * <p/>
+ * Must only be used on the UI thread.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+class MarkerIndex {
+    /** Edge length of a grid bucket, in pixels of zoom level 0. */
+    static final int CELL_SIZE = 256;
+
+    /** Markers closer than this on screen, in pixels, are shown as one cluster. */
+    static final int CLUSTER_SIZE = 64;
+
+    private static final int MAX_CELL = 0xffff;
+
+    private final SparseArray<ArrayList<TiledScrollViewWorker.Marker>> mCells =
+            new SparseArray<ArrayList<TiledScrollViewWorker.Marker>>();
+    private int mSize;
+
+    /** Clusters by zoom level, each keyed like the grid buckets. */
+    private final SparseArray<SparseArray<MarkerCluster>> mClusters = new SparseArray<SparseArray<MarkerCluster>>();
+    private final SparseArray<Float> mClusterCellSizes = new SparseArray<Float>();
+
+    private static int key(int cellX, int cellY) {
+        return (cellX << 16) | cellY;
+    }
+
+    private static int cell(float coordinate, float cellSize) {
+        return Math.max(0, Math.min(MAX_CELL, (int) (coordinate / cellSize)));
+    }
+
+    void add(TiledScrollViewWorker.Marker marker) {
+        insert(marker);
+        mClusters.clear();
+    }
+
+    /**
+     * Adds many markers at once. Clusters are rebuilt only once afterwards.
+     */
+    void addAll(Collection<? extends TiledScrollViewWorker.Marker> markers) {
+        for (TiledScrollViewWorker.Marker marker : markers) {
+            insert(marker);
+        }
+        mClusters.clear();
+    }
+
+    private void insert(TiledScrollViewWorker.Marker marker) {
+        final int key = key(cell(marker.getX(), CELL_SIZE), cell(marker.getY(), CELL_SIZE));
+
+        ArrayList<TiledScrollViewWorker.Marker> bucket = mCells.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<TiledScrollViewWorker.Marker>();
+            mCells.put(key, bucket);
+        }
+
+        bucket.add(marker);
+        mSize++;
+    }
+
+    boolean remove(TiledScrollViewWorker.Marker marker) {
+        final ArrayList<TiledScrollViewWorker.Marker> bucket =
+                mCells.get(key(cell(marker.getX(), CELL_SIZE), cell(marker.getY(), CELL_SIZE)));
+
+        if (bucket == null || !bucket.remove(marker)) {
+            return false;
+        }
+
+        mSize--;
+        mClusters.clear();
+        return true;
+    }
+
+    void clear() {
+        mCells.clear();
+        mClusters.clear();
+        mSize = 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Adds all markers within the given rectangle, in zoom level 0 coordinates, to
+     * <code>out</code>, which is cleared first.
+     */
+    void query(int left, int top, int right, int bottom, List<TiledScrollViewWorker.Marker> out) {
+        out.clear();
+
+        final int lastCellX = cell(right, CELL_SIZE);
+        final int lastCellY = cell(bottom, CELL_SIZE);
+
+        for (int cellY = cell(top, CELL_SIZE); cellY <= lastCellY; cellY++) {
+            for (int cellX = cell(left, CELL_SIZE); cellX <= lastCellX; cellX++) {
+                final ArrayList<TiledScrollViewWorker.Marker> bucket = mCells.get(key(cellX, cellY));
+                if (bucket == null) {
+                    continue;
+                }
+
+                for (int i = 0, n = bucket.size(); i < n; i++) {
+                    final TiledScrollViewWorker.Marker marker = bucket.get(i);
+                    if (marker.getX() >= left && marker.getX() < right
+                            && marker.getY() >= top && marker.getY() < bottom) {
+                        out.add(marker);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds the clusters of the given zoom level whose center lies within the given rectangle, in
+     * zoom level 0 coordinates, to <code>out</code>, which is cleared first.
+     *
+     * @param scale size of the zoom level relative to level 0
+     */
+    void queryClusters(int level, float scale, int left, int top, int right, int bottom, List<MarkerCluster> out) {
+        out.clear();
+
+        final float cellSize = CLUSTER_SIZE / scale;
+        SparseArray<MarkerCluster> clusters = mClusters.get(level);
+        if (clusters == null || mClusterCellSizes.get(level) != cellSize) {
+            clusters = buildClusters(cellSize);
+            mClusters.put(level, clusters);
+            mClusterCellSizes.put(level, cellSize);
+        }
+
+        // A cluster's center may lie up to one cell away from the cell it was built in.
+        final int lastCellX = cell(right + cellSize, cellSize);
+        final int lastCellY = cell(bottom + cellSize, cellSize);
+
+        for (int cellY = cell(top - cellSize, cellSize); cellY <= lastCellY; cellY++) {
+            for (int cellX = cell(left - cellSize, cellSize); cellX <= lastCellX; cellX++) {
+                final MarkerCluster cluster = clusters.get(key(cellX, cellY));
+                if (cluster != null && cluster.getX() >= left && cluster.getX() < right
+                        && cluster.getY() >= top && cluster.getY() < bottom) {
+                    out.add(cluster);
+                }
+            }
+        }
+    }
+
+    private SparseArray<MarkerCluster> buildClusters(float cellSize) {
+        final SparseArray<MarkerCluster> clusters = new SparseArray<MarkerCluster>();
+
+        for (int i = 0, n = mCells.size(); i < n; i++) {
+            final ArrayList<TiledScrollViewWorker.Marker> bucket = mCells.valueAt(i);
+            for (int j = 0, m = bucket.size(); j < m; j++) {
+                final TiledScrollViewWorker.Marker marker = bucket.get(j);
+                final int key = key(cell(marker.getX(), cellSize), cell(marker.getY(), cellSize));
+
+                MarkerCluster cluster = clusters.get(key);
+                if (cluster == null) {
+                    cluster = new MarkerCluster();
+                    clusters.put(key, cluster);
+                }
+                cluster.add(marker);
+            }
+        }
+
+        return clusters;
+    }
+}
@@ -0,0 +1,219 @@
+package asia.ivity.android.tiledscrollview;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.view.MotionEvent;
+import android.view.View;
+import android.view.ViewConfiguration;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Draws all markers around the viewport in a single pass, sharing one icon bitmap, and finds
+ * tapped markers through the {@link MarkerIndex} instead of one clickable view per marker.
+ * <p/>
+ * Covers the whole container, on top of the tiles. Touches that do not hit a marker are passed
+ * on, so scrolling is not affected.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+class MarkerOverlayView extends View {
+    private final MarkerIndex mIndex;
+    private final Bitmap mIcon;
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Paint mTextPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+    private final int mTouchSlop;
+
+    private int mLevel;
+    private float mScale = 1f;
+    private boolean mClustering;
+
+    /** Markers and clusters drawn, around the last viewport. */
+    private final List<TiledScrollViewWorker.Marker> mMarkers = new ArrayList<TiledScrollViewWorker.Marker>();
+    private final List<MarkerCluster> mClusters = new ArrayList<MarkerCluster>();
+
+    /** Reused for hit tests, so they do not disturb the lists above. */
+    private final List<TiledScrollViewWorker.Marker> mHitMarkers = new ArrayList<TiledScrollViewWorker.Marker>();
+    private final List<MarkerCluster> mHitClusters = new ArrayList<MarkerCluster>();
+
+    private Object mPressedItem;
+    private float mDownX;
+    private float mDownY;
+
+    private OnClickListener mOnMarkerClickListener;
+    private TiledScrollViewWorker.OnMarkerClickListener mMarkerListener;
+
+    MarkerOverlayView(Context context, MarkerIndex index, Bitmap icon) {
+        super(context);
+
+        mIndex = index;
+        mIcon = icon;
+        mTouchSlop = ViewConfiguration.get(context).getScaledTouchSlop();
+
+        mTextPaint.setColor(Color.WHITE);
+        mTextPaint.setTextAlign(Paint.Align.CENTER);
+        mTextPaint.setTextSize(icon.getHeight() / 2f);
+    }
+
+    /**
+     * @param level      the zoom level shown, clusters are built per level
+     * @param scale      size of that level relative to level 0
+     * @param clustering whether overlapping markers are drawn as clusters
+     */
+    void bind(int level, float scale, boolean clustering) {
+        mLevel = level;
+        mScale = scale;
+        mClustering = clustering;
+    }
+
+    void setOnMarkerClickListener(OnClickListener viewListener,
+                                  TiledScrollViewWorker.OnMarkerClickListener markerListener) {
+        mOnMarkerClickListener = viewListener;
+        mMarkerListener = markerListener;
+    }
+
+    /**
+     * Collects the markers within the given area of the current level and redraws them.
+     */
+    void setViewport(Rect viewport) {
+        // In level 0 coordinates, grown by half an icon so markers sticking into it are included.
+        final int left = (int) ((viewport.left - mIcon.getWidth() / 2) / mScale);
+        final int top = (int) ((viewport.top - mIcon.getHeight() / 2) / mScale);
+        final int right = (int) Math.ceil((viewport.right + mIcon.getWidth() / 2) / mScale);
+        final int bottom = (int) Math.ceil((viewport.bottom + mIcon.getHeight() / 2) / mScale);
+
+        if (mClustering) {
+            mMarkers.clear();
+            mIndex.queryClusters(mLevel, mScale, left, top, right, bottom, mClusters);
+        } else {
+            mClusters.clear();
+            mIndex.query(left, top, right, bottom, mMarkers);
+        }
+
+        invalidate();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        for (int i = 0, n = mMarkers.size(); i < n; i++) {
+            final TiledScrollViewWorker.Marker marker = mMarkers.get(i);
+            drawIcon(canvas, marker.getX(), marker.getY());
+        }
+
+        final float textOffset = (mTextPaint.descent() + mTextPaint.ascent()) / 2;
+        for (int i = 0, n = mClusters.size(); i < n; i++) {
+            final MarkerCluster cluster = mClusters.get(i);
+            drawIcon(canvas, cluster.getX(), cluster.getY());
+
+            if (cluster.getCount() > 1) {
+                canvas.drawText(Integer.toString(cluster.getCount()),
+                        cluster.getX() * mScale, cluster.getY() * mScale - textOffset, mTextPaint);
+            }
+        }
+    }
+
+    private void drawIcon(Canvas canvas, int x, int y) {
+        canvas.drawBitmap(mIcon, x * mScale - mIcon.getWidth() / 2f, y * mScale - mIcon.getHeight() / 2f, mPaint);
+    }
+
+    /**
+     * @return the {@link TiledScrollViewWorker.Marker} or {@link MarkerCluster} whose icon covers
+     *         the given point of the current level, the one closest to its center if several do,
+     *         or <code>null</code>.
+     */
+    Object findItemAt(float x, float y) {
+        final float halfWidth = mIcon.getWidth() / 2f / mScale;
+        final float halfHeight = mIcon.getHeight() / 2f / mScale;
+        final float x0 = x / mScale;
+        final float y0 = y / mScale;
+
+        final int left = (int) (x0 - halfWidth);
+        final int top = (int) (y0 - halfHeight);
+        final int right = (int) Math.ceil(x0 + halfWidth);
+        final int bottom = (int) Math.ceil(y0 + halfHeight);
+
+        Object best = null;
+        float bestDistance = Float.MAX_VALUE;
+
+        if (mClustering) {
+            mIndex.queryClusters(mLevel, mScale, left, top, right, bottom, mHitClusters);
+            for (int i = 0, n = mHitClusters.size(); i < n; i++) {
+                final MarkerCluster cluster = mHitClusters.get(i);
+                final float distance = distance(cluster.getX(), cluster.getY(), x0, y0);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = cluster.getCount() == 1 ? cluster.getMarkers().get(0) : cluster;
+                }
+            }
+        } else {
+            mIndex.query(left, top, right, bottom, mHitMarkers);
+            for (int i = 0, n = mHitMarkers.size(); i < n; i++) {
+                final TiledScrollViewWorker.Marker marker = mHitMarkers.get(i);
+                final float distance = distance(marker.getX(), marker.getY(), x0, y0);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = marker;
+                }
+            }
+        }
+
+        return best;
+    }
+
+    private static float distance(int x, int y, float x0, float y0) {
+        return (x - x0) * (x - x0) + (y - y0) * (y - y0);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        switch (event.getAction() & MotionEvent.ACTION_MASK) {
+            case MotionEvent.ACTION_DOWN:
+                if (mOnMarkerClickListener == null && mMarkerListener == null) {
+                    return false;
+                }
+                mPressedItem = findItemAt(event.getX(), event.getY());
+                mDownX = event.getX();
+                mDownY = event.getY();
+                // Touches next to markers go to the scroll view.
+                return mPressedItem != null;
+            case MotionEvent.ACTION_MOVE:
+                if (Math.abs(event.getX() - mDownX) > mTouchSlop || Math.abs(event.getY() - mDownY) > mTouchSlop) {
+                    mPressedItem = null;
+                }
+                return true;
+            case MotionEvent.ACTION_UP:
+                if (mPressedItem != null) {
+                    dispatchMarkerClick(mPressedItem);
+                    mPressedItem = null;
+                }
+                return true;
+            case MotionEvent.ACTION_CANCEL:
+                mPressedItem = null;
+                return true;
+        }
+
+        return false;
+    }
+
+    private void dispatchMarkerClick(Object item) {
+        if (mMarkerListener != null) {
+            if (item instanceof MarkerCluster) {
+                mMarkerListener.onMarkerClusterClick((MarkerCluster) item);
+            } else {
+                mMarkerListener.onMarkerClick((TiledScrollViewWorker.Marker) item);
+            }
+        }
+
+        if (mOnMarkerClickListener != null) {
+            // Listeners written for one view per marker read the marker from the tag.
+            setTag(item);
+            mOnMarkerClickListener.onClick(this);
+            setTag(null);
+        }
+    }
+}
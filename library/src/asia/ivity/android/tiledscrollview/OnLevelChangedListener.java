@@ -0,0 +1,11 @@
+package asia.ivity.android.tiledscrollview;
+
+/**
+ * Notified after the view switched to another zoom level.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+public interface OnLevelChangedListener {
+    /** @param newLevel the index of the zoom level now shown. */
+    void onLevelChanged(int newLevel);
+}
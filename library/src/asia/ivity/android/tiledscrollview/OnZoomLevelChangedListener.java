@@ -1,10 +1,13 @@
 package asia.ivity.android.tiledscrollview;
 
 /**
- * DESCRIPTION
+ * Notified after the view switched to one of the first three zoom levels.
  *
  * @author Sebastian Roth <sebastian.roth@gmail.com>
+ * @deprecated Zoom levels are plain indexes now, use {@link OnLevelChangedListener}, which is
+ *             notified about every level.
  */
+@Deprecated
 public interface OnZoomLevelChangedListener {
     void onZoomLevelChanged(TiledScrollView.ZoomLevel newLevel);
 }
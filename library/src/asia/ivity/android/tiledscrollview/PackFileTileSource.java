@@ -0,0 +1,164 @@
+package asia.ivity.android.tiledscrollview;
+
+import android.content.res.AssetFileDescriptor;
+import android.content.res.AssetManager;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Reads tiles from a single memory-mapped pack file, as written by the <code>TilePacker</code> of
+ * the tools module. See {@link TilePackFormat} for the layout.
+ * <p/>
+ * A pack holds any number of zoom levels, each identified by the file pattern it was packed
+ * from, so one pack serves all configuration sets of a pyramid. Tiles are streamed straight from
+ * the mapping, without opening a file per tile.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+public class PackFileTileSource extends TileSource {
+    private final String mName;
+    private final String mIdentity;
+    private final ByteBuffer mData;
+    private final Map<String, Level> mLevels = new HashMap<String, Level>();
+
+    public PackFileTileSource(File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            // The mapping stays valid after the channel is closed.
+            mData = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        } finally {
+            raf.close();
+        }
+
+        mName = file.toString();
+        mIdentity = "pack:" + file.getAbsolutePath();
+        readIndex();
+    }
+
+    /**
+     * Maps a pack stored in the APK assets. The asset must be stored uncompressed, e.g. by
+     * passing <code>-0 pack</code> to aapt.
+     */
+    public PackFileTileSource(AssetManager assets, String path) throws IOException {
+        final AssetFileDescriptor afd;
+        try {
+            afd = assets.openFd(path);
+        } catch (IOException e) {
+            throw new IOException("Cannot map asset at:" + path + ", is it compressed?");
+        }
+
+        try {
+            final FileInputStream in = afd.createInputStream();
+            try {
+                mData = in.getChannel().map(FileChannel.MapMode.READ_ONLY, afd.getStartOffset(), afd.getLength());
+            } finally {
+                in.close();
+            }
+        } finally {
+            afd.close();
+        }
+
+        mName = path;
+        mIdentity = "pack:asset:" + path;
+        readIndex();
+    }
+
+    @Override
+    public String getIdentity() {
+        return mIdentity;
+    }
+
+    private void readIndex() throws IOException {
+        final ByteBuffer header = mData.duplicate();
+
+        try {
+            if (header.getInt() != TilePackFormat.MAGIC) {
+                throw new IOException("Not a tile pack: " + mName);
+            }
+
+            final int version = header.getInt();
+            if (version != TilePackFormat.VERSION) {
+                throw new IOException("Unsupported tile pack version " + version + ": " + mName);
+            }
+
+            final int levelCount = header.getInt();
+            for (int i = 0; i < levelCount; i++) {
+                final byte[] pattern = new byte[header.getShort() & 0xffff];
+                header.get(pattern);
+
+                final int columns = header.getInt();
+                final int rows = header.getInt();
+                final int position = header.getInt();
+
+                final ByteBuffer index = mData.duplicate();
+                index.position(position);
+                final IntBuffer offsets = index.slice().asIntBuffer();
+
+                if (columns < 0 || rows < 0 || offsets.capacity() < columns * rows + 1) {
+                    throw new IOException("Truncated tile pack: " + mName);
+                }
+
+                mLevels.put(new String(pattern, "UTF-8"), new Level(columns, rows, offsets));
+            }
+        } catch (RuntimeException e) {
+            // Buffer underflows and bad positions of a damaged file.
+            throw new IOException("Damaged tile pack: " + mName);
+        }
+    }
+
+    /** @return whether the pack holds tiles for the given file pattern. */
+    public boolean hasLevel(String filePattern) {
+        return mLevels.containsKey(filePattern);
+    }
+
+    @Override
+    protected InputStream openTile(ConfigurationSet set, int x, int y) throws IOException {
+        final Level level = mLevels.get(set.getFilePattern());
+        if (level == null) {
+            throw new IOException("No level " + set.getFilePattern() + " in " + mName);
+        }
+
+        if (x < 0 || y < 0 || x >= level.columns || y >= level.rows) {
+            throw new IOException("No tile " + x + "/" + y + " in " + mName);
+        }
+
+        final int index = y * level.columns + x;
+        final int start = level.offsets.get(index);
+        final int end = level.offsets.get(index + 1);
+
+        if (end <= start || start < 0 || end > mData.capacity()) {
+            throw new IOException("No tile " + x + "/" + y + " in " + mName);
+        }
+
+        final ByteBuffer tile = mData.duplicate();
+        tile.limit(end);
+        tile.position(start);
+        return new ByteBufferInputStream(tile);
+    }
+
+    @Override
+    protected InputStream openPath(String path) throws IOException {
+        throw new IOException("Pack files only hold tiles, cannot open: " + path);
+    }
+
+    private static class Level {
+        final int columns;
+        final int rows;
+        final IntBuffer offsets;
+
+        Level(int columns, int rows, IntBuffer offsets) {
+            this.columns = columns;
+            this.rows = rows;
+            this.offsets = offsets;
+        }
+    }
+}
@@ -1,19 +1,61 @@
 package asia.ivity.android.tiledscrollview;
 
-/** Simple tile coordinates (X, Y). */
+/** Simple tile coordinates (X, Y) within a zoom level. */
 class Tile {
-    public Tile(int x_, int y_) {
+    /** Highest zoom level a key can hold, see {@link #key(int, int, int)}. */
+    static final int MAX_LEVEL = 0x7fff;
+
+    public Tile(int level_, int x_, int y_) {
+        level = level_;
         x = x_;
         y = y_;
     }
 
+    int level;
     int x;
     int y;
 
+    /**
+     * Packs a tile's coordinates into a single <code>long</code>: 16 bits of level above 24 bits
+     * each of y and x. Never negative for levels up to {@link #MAX_LEVEL}.
+     */
+    static long key(int level, int x, int y) {
+        return ((long) level << 48) | ((long) (y & 0xffffff) << 24) | (x & 0xffffff);
+    }
+
+    /**
+     * @throws IllegalArgumentException if tiles of the given zoom level cannot be keyed
+     */
+    static void checkLevel(int level) {
+        if (level < 0) {
+            throw new IllegalArgumentException("Zoom level must not be negative, was: " + level);
+        }
+        if (level > MAX_LEVEL) {
+            throw new IllegalArgumentException("Zoom level must not exceed " + MAX_LEVEL + ", was: " + level);
+        }
+    }
+
+    static int levelOf(long key) {
+        return (int) (key >>> 48);
+    }
+
+    static int xOf(long key) {
+        return (int) (key & 0xffffff);
+    }
+
+    static int yOf(long key) {
+        return (int) ((key >>> 24) & 0xffffff);
+    }
+
+    long key() {
+        return key(level, x, y);
+    }
+
     @Override
     public String toString() {
         return "Tile{" +
-                "x=" + x +
+                "level=" + level +
+                ", x=" + x +
                 ", y=" + y +
                 '}';
     }
@@ -25,6 +67,7 @@ class Tile {
 
         Tile tile = (Tile) o;
 
+        if (level != tile.level) return false;
         if (x != tile.x) return false;
         if (y != tile.y) return false;
 
@@ -33,7 +76,8 @@ class Tile {
 
     @Override
     public int hashCode() {
-        int result = x;
+        int result = level;
+        result = 31 * result + x;
         result = 31 * result + y;
         return result;
     }
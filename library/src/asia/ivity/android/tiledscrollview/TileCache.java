@@ -0,0 +1,155 @@
+package asia.ivity.android.tiledscrollview;
+
+import android.graphics.Bitmap;
+import android.support.v4.util.LruCache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Memory cache for decoded tile bitmaps.
+ * <p/>
+ * The cache is bounded by the number of bytes held by its bitmaps and evicts the least recently
+ * used tiles first. Entries are keyed by zoom level and tile coordinate, so tiles of several
+ * zoom levels can live in the same cache.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+public class TileCache {
+    /** Share of the VM heap used by {@link #forMemoryFraction(float)} when nothing else is configured. */
+    public static final float DEFAULT_MEMORY_FRACTION = 0.125f;
+
+    private final LruCache<Tile, Bitmap> mCache;
+
+    /**
+     * The bitmaps held by {@link #mCache}, by {@link Tile#key(int, int, int)}, so they can be
+     * looked up without touching the LRU order. Only modified while holding {@link #mLock}.
+     */
+    private final TileMap<Bitmap> mResident = new TileMap<Bitmap>();
+    private final Object mLock = new Object();
+    private final AtomicInteger mHitCount = new AtomicInteger();
+    private final AtomicInteger mMissCount = new AtomicInteger();
+    private volatile BitmapPool mRecycler;
+
+    /**
+     * Creates a cache holding at most <code>maxBytes</code> of bitmap data.
+     */
+    public TileCache(int maxBytes) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size must be positive, was: " + maxBytes);
+        }
+
+        mCache = new LruCache<Tile, Bitmap>(maxBytes) {
+            @Override
+            protected int sizeOf(Tile key, Bitmap value) {
+                return byteCount(value);
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Tile key, Bitmap oldValue, Bitmap newValue) {
+                // Called by the thread changing the cache, which holds mLock.
+                final int slot = mResident.indexOf(key.key());
+                if (slot >= 0 && mResident.valueAt(slot) == oldValue) {
+                    mResident.removeAt(slot);
+                }
+
+                final BitmapPool recycler = mRecycler;
+                if (recycler != null && oldValue != newValue) {
+                    recycler.retire(oldValue);
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates a cache sized as a fraction of {@link Runtime#maxMemory()}.
+     *
+     * @param fraction value between 0 (exclusive) and 1 (inclusive)
+     */
+    public static TileCache forMemoryFraction(float fraction) {
+        if (fraction <= 0f || fraction > 1f) {
+            throw new IllegalArgumentException("Fraction must be in (0, 1], was: " + fraction);
+        }
+
+        final long maxBytes = (long) (Runtime.getRuntime().maxMemory() * fraction);
+        return new TileCache((int) Math.min(Integer.MAX_VALUE, Math.max(1, maxBytes)));
+    }
+
+    /**
+     * Retires bitmaps leaving the cache into the given pool, see {@link BitmapPool#retire(Bitmap)}.
+     * Only safe while views draw cached bitmaps straight from the cache and are redrawn as the
+     * pool asks for it.
+     */
+    void setRecycler(BitmapPool recycler) {
+        mRecycler = recycler;
+    }
+
+    Bitmap get(Tile tile) {
+        final Bitmap bitmap = mCache.get(tile);
+        if (bitmap != null) {
+            mHitCount.incrementAndGet();
+        } else {
+            mMissCount.incrementAndGet();
+        }
+        return bitmap;
+    }
+
+    /**
+     * Like {@link #get(Tile)}, but neither counts towards the hit and miss statistics nor marks
+     * the tile as recently used, so checks and draws do not keep tiles alive. Does not lock.
+     */
+    Bitmap peek(Tile tile) {
+        return mResident.get(tile.key());
+    }
+
+    void put(Tile tile, Bitmap bitmap) {
+        synchronized (mLock) {
+            // Listed first, so evicting the new bitmap right away also removes it here.
+            mResident.put(tile.key(), bitmap);
+            mCache.put(tile, bitmap);
+        }
+    }
+
+    /** Drops every cached tile. */
+    public void clear() {
+        synchronized (mLock) {
+            mCache.evictAll();
+        }
+    }
+
+    /** @return bytes currently held by cached bitmaps. */
+    public int size() {
+        return mCache.size();
+    }
+
+    /** @return the byte budget of this cache. */
+    public int maxSize() {
+        return mCache.maxSize();
+    }
+
+    public int hitCount() {
+        return mHitCount.get();
+    }
+
+    public int missCount() {
+        return mMissCount.get();
+    }
+
+    public int evictionCount() {
+        return mCache.evictionCount();
+    }
+
+    static int byteCount(Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    @Override
+    public String toString() {
+        return "TileCache{" +
+                "size=" + size() +
+                ", maxSize=" + maxSize() +
+                ", hits=" + hitCount() +
+                ", misses=" + missCount() +
+                ", evictions=" + evictionCount() +
+                '}';
+    }
+}
@@ -0,0 +1,244 @@
+package asia.ivity.android.tiledscrollview;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.view.View;
+
+/**
+ * Single view drawing all cached tiles of one zoom level straight onto its canvas.
+ * <p/>
+ * Used instead of one child view per tile when <code>canvas_rendering</code> is enabled: a tile
+ * that finished decoding only invalidates its own rectangle and never causes a layout pass.
+ * <p/>
+ * With a scale other than 1, the tiles of one level are drawn at the size of another. This keeps
+ * the previous level on screen while the tiles of a new one are loading.
+ * <p/>
+ * Where a tile is missing, the matching part of a cached tile of the fallback level is drawn
+ * upscaled instead. When tiles are shown by child views, this view only draws those
+ * placeholders, underneath the views.
+ * <p/>
+ * Only tiles within the viewport are drawn, as hardware accelerated canvases clip to the whole
+ * view, which is as large as the image. While the container is zoomed, the viewport no longer
+ * matches and the clip is used alone.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+class TileCanvasView extends View {
+    private TileCache mCache;
+    private ConfigurationSet mSet;
+    private int mLevel;
+    private float mScale = 1f;
+
+    /** Level drawn where a tile is missing, or -1. */
+    private int mFallbackLevel = -1;
+    private ConfigurationSet mFallbackSet;
+
+    /** Tiles shown by views of their own, <code>null</code> if this view draws all tiles. */
+    private TileMap<?> mAttached;
+
+    /** Reused for cache lookups while drawing. */
+    private final Tile mLookup = new Tile(0, 0, 0);
+    private final Tile mFallbackLookup = new Tile(0, 0, 0);
+    private final Rect mClip = new Rect();
+
+    /** The part of the container scrolled into view, empty while unknown. */
+    private final Rect mViewport = new Rect();
+    private final Rect mVisible = new Rect();
+    private final Rect mDst = new Rect();
+    private final Rect mSrc = new Rect();
+    private final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    TileCanvasView(Context context) {
+        super(context);
+    }
+
+    void bind(TileCache cache, int level, ConfigurationSet set) {
+        mCache = cache;
+        mLevel = level;
+        mSet = set;
+        invalidate();
+    }
+
+    /** Draws the bound tiles scaled by the given factor. */
+    void setScale(float scale) {
+        mScale = scale;
+        invalidate();
+    }
+
+    /**
+     * Sets the level whose tiles stand in for missing ones, typically the next lower one.
+     *
+     * @param level    the fallback level, or -1 for none
+     * @param attached tiles drawn by views of their own, which are skipped. <code>null</code> if
+     *                 this view draws the bound tiles itself.
+     */
+    void setFallback(int level, ConfigurationSet set, TileMap<?> attached) {
+        mFallbackLevel = set != null ? level : -1;
+        mFallbackSet = set;
+        mAttached = attached;
+        invalidate();
+    }
+
+    /**
+     * Limits drawing to the given area, in the coordinates of the container at scale 1. Usually
+     * the scroll position and size of the scroll view.
+     */
+    void setViewport(int left, int top, int right, int bottom) {
+        if (mViewport.left == left && mViewport.top == top && mViewport.right == right && mViewport.bottom == bottom) {
+            return;
+        }
+
+        mViewport.set(left, top, right, bottom);
+        invalidate();
+    }
+
+    /** Redraws the area of the given tile, if it belongs to the bound zoom level. */
+    void invalidateTile(Tile tile) {
+        if (mSet == null || tile.level != mLevel) {
+            return;
+        }
+
+        final int left = tile.x * mSet.getTileWidth();
+        final int top = tile.y * mSet.getTileHeight();
+        invalidate((int) (left * mScale), (int) (top * mScale),
+                (int) Math.ceil((left + mSet.getTileWidth()) * mScale),
+                (int) Math.ceil((top + mSet.getTileHeight()) * mScale));
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mCache == null || mSet == null) {
+            return;
+        }
+
+        final int saveCount = canvas.save();
+        canvas.scale(mScale, mScale);
+
+        // The clip bounds are now in the coordinates of the bound level.
+        if (canvas.getClipBounds(mClip) && clipToViewport()) {
+            drawTiles(canvas);
+        }
+
+        canvas.restoreToCount(saveCount);
+    }
+
+    /**
+     * Narrows {@link #mClip} to the viewport, in the coordinates of the bound level.
+     *
+     * @return whether anything is left to draw
+     */
+    private boolean clipToViewport() {
+        if (mViewport.isEmpty()) {
+            return true;
+        }
+        if (getParent() instanceof ZoomingFrameLayout && ((ZoomingFrameLayout) getParent()).isZoomed()) {
+            return true;
+        }
+
+        mVisible.set((int) (mViewport.left / mScale), (int) (mViewport.top / mScale),
+                (int) Math.ceil(mViewport.right / mScale), (int) Math.ceil(mViewport.bottom / mScale));
+        return mClip.intersect(mVisible);
+    }
+
+    private void drawTiles(Canvas canvas) {
+        final int tileWidth = mSet.getTileWidth();
+        final int tileHeight = mSet.getTileHeight();
+
+        final int firstCol = Math.max(0, mClip.left / tileWidth);
+        final int firstRow = Math.max(0, mClip.top / tileHeight);
+        final int lastCol = Math.min((mSet.getImageWidth() - 1) / tileWidth, (mClip.right - 1) / tileWidth);
+        final int lastRow = Math.min((mSet.getImageHeight() - 1) / tileHeight, (mClip.bottom - 1) / tileHeight);
+
+        mLookup.level = mLevel;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                mLookup.x = col;
+                mLookup.y = row;
+
+                final int left = col * tileWidth;
+                final int top = row * tileHeight;
+                final int right = left + mSet.getTileWidthAt(col);
+                final int bottom = top + mSet.getTileHeightAt(row);
+
+                if (mAttached != null) {
+                    if (!mAttached.containsKey(Tile.key(mLevel, col, row))) {
+                        drawFallback(canvas, left, top, right, bottom);
+                    }
+                    continue;
+                }
+
+                final Bitmap bitmap = mCache.peek(mLookup);
+                if (bitmap != null) {
+                    mDst.set(left, top, right, bottom);
+                    canvas.drawBitmap(bitmap, null, mDst, mPaint);
+                } else {
+                    drawFallback(canvas, left, top, right, bottom);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills the given area of the bound level with whatever tiles of the fallback level cover it.
+     */
+    private void drawFallback(Canvas canvas, int left, int top, int right, int bottom) {
+        if (mFallbackLevel < 0) {
+            return;
+        }
+
+        final ConfigurationSet parent = mFallbackSet;
+        final float scaleX = (float) parent.getImageWidth() / mSet.getImageWidth();
+        final float scaleY = (float) parent.getImageHeight() / mSet.getImageHeight();
+
+        // The area in fallback level pixels.
+        final float pLeft = left * scaleX;
+        final float pTop = top * scaleY;
+        final float pRight = right * scaleX;
+        final float pBottom = bottom * scaleY;
+
+        final int tileWidth = parent.getTileWidth();
+        final int tileHeight = parent.getTileHeight();
+        final int firstCol = (int) (pLeft / tileWidth);
+        final int firstRow = (int) (pTop / tileHeight);
+        final int lastCol = Math.min((parent.getImageWidth() - 1) / tileWidth, (int) ((pRight - 1e-3f) / tileWidth));
+        final int lastRow = Math.min((parent.getImageHeight() - 1) / tileHeight, (int) ((pBottom - 1e-3f) / tileHeight));
+
+        mFallbackLookup.level = mFallbackLevel;
+        for (int row = firstRow; row <= lastRow; row++) {
+            for (int col = firstCol; col <= lastCol; col++) {
+                mFallbackLookup.x = col;
+                mFallbackLookup.y = row;
+
+                final Bitmap bitmap = mCache.peek(mFallbackLookup);
+                if (bitmap == null) {
+                    continue;
+                }
+
+                final int tileLeft = col * tileWidth;
+                final int tileTop = row * tileHeight;
+
+                // Overlap of the area and this tile, in fallback level pixels.
+                final float oLeft = Math.max(pLeft, tileLeft);
+                final float oTop = Math.max(pTop, tileTop);
+                final float oRight = Math.min(pRight, tileLeft + parent.getTileWidthAt(col));
+                final float oBottom = Math.min(pBottom, tileTop + parent.getTileHeightAt(row));
+                if (oRight <= oLeft || oBottom <= oTop) {
+                    continue;
+                }
+
+                // Tiles decoded with a sample size are smaller than their logical size.
+                final float bitmapScaleX = (float) bitmap.getWidth() / parent.getTileWidthAt(col);
+                final float bitmapScaleY = (float) bitmap.getHeight() / parent.getTileHeightAt(row);
+
+                mSrc.set((int) ((oLeft - tileLeft) * bitmapScaleX), (int) ((oTop - tileTop) * bitmapScaleY),
+                        (int) Math.ceil((oRight - tileLeft) * bitmapScaleX), (int) Math.ceil((oBottom - tileTop) * bitmapScaleY));
+                mDst.set((int) (oLeft / scaleX), (int) (oTop / scaleY),
+                        (int) Math.ceil(oRight / scaleX), (int) Math.ceil(oBottom / scaleY));
+                canvas.drawBitmap(bitmap, mSrc, mDst, mPaint);
+            }
+        }
+    }
+}
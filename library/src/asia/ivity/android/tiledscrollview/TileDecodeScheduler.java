@@ -0,0 +1,426 @@
+package asia.ivity.android.tiledscrollview;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Decodes tiles on bounded pools of background threads.
+ * <p/>
+ * Every lane, typically one per {@link TileSource}, has threads of its own, so tiles from a slow
+ * source never hold up tiles from a fast one.
+ * <p/>
+ * Requests carry a priority (lower values run first), so tiles close to the center of the
+ * viewport can be decoded before those at its edges. Requests for tiles that are no longer
+ * needed can be cancelled as long as they have not started. All methods must be called from the
+ * UI thread, results are delivered there as well.
+ * <p/>
+ * Prefetch requests always rank behind regular ones and are only dropped by
+ * {@link #cancelPrefetch()}, so they survive viewport changes while a fling is in progress.
+ * <p/>
+ * Region requests are pinned: neither viewport changes nor {@link #cancelPrefetch()} drop them,
+ * only {@link #unpin(int, int, int)} does. The callback hears when their tile is in the cache.
+ * <p/>
+ * Queue and decode times of regular requests are only taken while timing is enabled.
+ * <p/>
+ * Idle lane threads end after a while on API level 9 and above, {@link #shutdown()} ends all of
+ * them at once.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+class TileDecodeScheduler {
+    private static final String TAG = TileDecodeScheduler.class.getSimpleName();
+    private static final int MSG_DECODED = 1;
+
+    /** Idle time after which the threads of a lane end, so lanes of unused sources cost nothing. */
+    private static final long KEEP_ALIVE_MILLIS = 10000;
+
+    /** Produces the bitmap of a tile. Called on a decode thread. */
+    interface Decoder {
+        Bitmap decode(Tile tile) throws IOException;
+
+        /**
+         * @return key of the lane the given tile is decoded in. Called on the UI thread.
+         */
+        Object getLane(Tile tile);
+    }
+
+    /** Receives decoded tiles on the UI thread. */
+    interface Callback {
+        /**
+         * @param queueNanos  time the tile waited for a decode thread, 0 without timing
+         * @param decodeNanos time its decode took, 0 without timing
+         */
+        void onTileDecoded(Tile tile, Bitmap bitmap, long queueNanos, long decodeNanos);
+
+        /**
+         * A regular request ended without a bitmap to show.
+         *
+         * @param reason one of the <code>DROPPED_*</code> constants of {@link TileMetricsListener}
+         */
+        void onTileDropped(Tile tile, int reason);
+
+        /**
+         * A pinned request ended, see {@link #scheduleRegion(int, int, int, long)}.
+         *
+         * @param success whether the tile is in the cache now
+         */
+        void onTileCached(Tile tile, boolean success);
+    }
+
+    private final Decoder mDecoder;
+    private final Callback mCallback;
+    private final Map<Object, ThreadPoolExecutor> mLanes = new HashMap<Object, ThreadPoolExecutor>();
+    private final ThreadFactory mThreadFactory = new DecodeThreadFactory();
+    private final TileMap<DecodeTask> mPending = new TileMap<DecodeTask>();
+    private int mThreadCount;
+    private long mSequence;
+    private volatile boolean mTiming;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper(), new Handler.Callback() {
+        @Override
+        public boolean handleMessage(Message msg) {
+            if (msg.what == MSG_DECODED) {
+                deliver((DecodeTask) msg.obj);
+                return true;
+            }
+            return false;
+        }
+    });
+
+    TileDecodeScheduler(Decoder decoder, Callback callback, int threadCount) {
+        mDecoder = decoder;
+        mCallback = callback;
+        mThreadCount = threadCount;
+    }
+
+    private ThreadPoolExecutor getLane(Tile tile) {
+        final Object key = mDecoder.getLane(tile);
+        ThreadPoolExecutor lane = mLanes.get(key);
+
+        if (lane == null) {
+            lane = new ThreadPoolExecutor(mThreadCount, mThreadCount, KEEP_ALIVE_MILLIS,
+                    TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>(), mThreadFactory);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.GINGERBREAD) {
+                allowCoreThreadTimeOut(lane);
+            }
+            mLanes.put(key, lane);
+        }
+
+        return lane;
+    }
+
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD)
+    private static void allowCoreThreadTimeOut(ThreadPoolExecutor lane) {
+        lane.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Changes the number of decode threads per lane. Running decodes are not interrupted.
+     */
+    void setThreadCount(int threadCount) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("At least one decode thread is required, was: " + threadCount);
+        }
+
+        mThreadCount = threadCount;
+
+        for (ThreadPoolExecutor lane : mLanes.values()) {
+            if (threadCount > lane.getMaximumPoolSize()) {
+                lane.setMaximumPoolSize(threadCount);
+                lane.setCorePoolSize(threadCount);
+            } else {
+                lane.setCorePoolSize(threadCount);
+                lane.setMaximumPoolSize(threadCount);
+            }
+        }
+    }
+
+    int getThreadCount() {
+        return mThreadCount;
+    }
+
+    /** Enables taking the queue and decode times reported to the callback. */
+    void setTimingEnabled(boolean timing) {
+        mTiming = timing;
+    }
+
+    /**
+     * Requests the given tile to be decoded. If it is already waiting, only its priority is
+     * updated, without allocating anything.
+     */
+    void schedule(int level, int x, int y, long priority) {
+        final long key = Tile.key(level, x, y);
+        DecodeTask task = mPending.get(key);
+
+        if (task != null) {
+            task.prefetch = false;
+            if (task.priority != priority && task.lane.remove(task)) {
+                task.priority = priority;
+                task.lane.execute(task);
+            }
+            return;
+        }
+
+        final Tile tile = new Tile(level, x, y);
+        task = new DecodeTask(tile, getLane(tile), priority, mSequence++);
+        if (mTiming) {
+            task.queuedAt = System.nanoTime();
+        }
+        mPending.put(key, task);
+        task.lane.execute(task);
+    }
+
+    /**
+     * Requests a tile that is expected to become visible soon. Does nothing if the tile is
+     * already pending.
+     *
+     * @param priority rank among other prefetch requests, lower values run first
+     */
+    void schedulePrefetch(int level, int x, int y, long priority) {
+        final long key = Tile.key(level, x, y);
+        if (mPending.containsKey(key)) {
+            return;
+        }
+
+        final Tile tile = new Tile(level, x, y);
+        final DecodeTask task = new DecodeTask(tile, getLane(tile), TileLoadEngine.PREFETCH_PRIORITY + priority, mSequence++);
+        task.prefetch = true;
+        mPending.put(key, task);
+        task.lane.execute(task);
+    }
+
+    /**
+     * Requests a tile of a region to be loaded into the cache and pins its request, which may
+     * already be pending. Pinned requests are only dropped by {@link #unpin(int, int, int)}.
+     *
+     * @param priority rank among other region requests, lower values run first
+     */
+    void scheduleRegion(int level, int x, int y, long priority) {
+        final long key = Tile.key(level, x, y);
+        DecodeTask task = mPending.get(key);
+
+        if (task == null) {
+            final Tile tile = new Tile(level, x, y);
+            task = new DecodeTask(tile, getLane(tile), TileLoadEngine.REGION_PRIORITY + priority, mSequence++);
+            task.prefetch = true;
+            mPending.put(key, task);
+            task.lane.execute(task);
+        }
+
+        task.pinned = true;
+    }
+
+    /**
+     * Releases the pin of a tile's request. A request that was only made for regions is
+     * cancelled, one for a visible tile goes on.
+     */
+    void unpin(int level, int x, int y) {
+        final long key = Tile.key(level, x, y);
+        final DecodeTask task = mPending.get(key);
+        if (task == null || !task.pinned) {
+            return;
+        }
+
+        task.pinned = false;
+        if (task.prefetch) {
+            cancel(task);
+            mPending.remove(key);
+        }
+    }
+
+    /** @param key see {@link Tile#key(int, int, int)} */
+    boolean isPending(long key) {
+        return mPending.containsKey(key);
+    }
+
+    /**
+     * Cancels every regular request outside of the given tile range of the given level. Tiles
+     * that are already being decoded will still be cached, but not delivered.
+     */
+    void retain(int level, int firstCol, int firstRow, int lastCol, int lastRow) {
+        for (int i = 0, n = mPending.slotCount(); i < n; i++) {
+            final DecodeTask task = mPending.valueAt(i);
+            if (task == null) {
+                continue;
+            }
+
+            final Tile tile = task.tile;
+            if (task.prefetch || task.pinned) {
+                continue;
+            }
+
+            if (tile.level != level || tile.x < firstCol || tile.x > lastCol || tile.y < firstRow || tile.y > lastRow) {
+                cancel(task);
+                mPending.removeAt(i);
+            }
+        }
+    }
+
+    /** @return whether any tile is still waiting to be decoded or delivered. */
+    boolean hasPending() {
+        return !mPending.isEmpty();
+    }
+
+    /** Cancels all prefetch requests that are not pinned. */
+    void cancelPrefetch() {
+        for (int i = 0, n = mPending.slotCount(); i < n; i++) {
+            final DecodeTask task = mPending.valueAt(i);
+
+            if (task != null && task.prefetch && !task.pinned) {
+                cancel(task);
+                mPending.removeAt(i);
+            }
+        }
+    }
+
+    /** Cancels all requests. */
+    void cancelAll() {
+        for (int i = 0, n = mPending.slotCount(); i < n; i++) {
+            final DecodeTask task = mPending.valueAt(i);
+            if (task != null) {
+                cancel(task);
+            }
+        }
+        mPending.clear();
+    }
+
+    /**
+     * Cancels all requests and ends the threads of all lanes once their running decodes are done.
+     * Lanes are created again by the next request.
+     */
+    void shutdown() {
+        cancelAll();
+
+        for (ThreadPoolExecutor lane : mLanes.values()) {
+            lane.shutdown();
+        }
+        mLanes.clear();
+    }
+
+    private void cancel(DecodeTask task) {
+        task.cancelled = true;
+
+        // Tasks already running are reported as stale once they are done.
+        if (task.lane.remove(task) && !task.prefetch) {
+            mCallback.onTileDropped(task.tile, TileMetricsListener.DROPPED_CANCELLED);
+        }
+    }
+
+    private void deliver(DecodeTask task) {
+        final int slot = mPending.indexOf(task.tile.key());
+        if (slot >= 0 && mPending.valueAt(slot) == task) {
+            mPending.removeAt(slot);
+        }
+
+        // Prefetched tiles only need to end up in the cache, they are shown once they scroll into
+        // the viewport.
+        if (!task.prefetch) {
+            if (task.cancelled) {
+                if (task.started) {
+                    mCallback.onTileDropped(task.tile, TileMetricsListener.DROPPED_STALE);
+                }
+            } else if (task.bitmap == null) {
+                mCallback.onTileDropped(task.tile, TileMetricsListener.DROPPED_FAILED);
+            } else {
+                mCallback.onTileDecoded(task.tile, task.bitmap, task.queueNanos, task.decodeNanos);
+            }
+        }
+
+        if (task.pinned && !task.cancelled) {
+            mCallback.onTileCached(task.tile, task.bitmap != null);
+        }
+
+        task.bitmap = null;
+    }
+
+    private class DecodeTask implements Runnable, Comparable<DecodeTask> {
+        final Tile tile;
+        final ThreadPoolExecutor lane;
+        final long sequence;
+        volatile long priority;
+        volatile boolean cancelled;
+        volatile boolean started;
+        boolean prefetch;
+        boolean pinned;
+        Bitmap bitmap;
+
+        /** Timing, only taken while enabled. */
+        long queuedAt;
+        long queueNanos;
+        long decodeNanos;
+
+        DecodeTask(Tile tile, ThreadPoolExecutor lane, long priority, long sequence) {
+            this.tile = tile;
+            this.lane = lane;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            if (cancelled) {
+                return;
+            }
+            started = true;
+
+            final long start = queuedAt != 0 ? System.nanoTime() : 0;
+            try {
+                bitmap = mDecoder.decode(tile);
+            } catch (IOException e) {
+                Log.w(TAG, "Problem decoding " + tile + ": " + e.getMessage());
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Problem decoding " + tile, e);
+            } catch (OutOfMemoryError e) {
+                // The tile is reported as failed, so it is requested again once memory is freed.
+                Log.e(TAG, "Out of memory decoding " + tile);
+            }
+
+            if (start != 0) {
+                queueNanos = start - queuedAt;
+                decodeNanos = System.nanoTime() - start;
+            }
+
+            Message.obtain(mHandler, MSG_DECODED, this).sendToTarget();
+        }
+
+        @Override
+        public int compareTo(DecodeTask other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    private static class DecodeThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, "TileDecoder #" + mCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
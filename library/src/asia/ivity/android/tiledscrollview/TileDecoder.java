@@ -0,0 +1,195 @@
+package asia.ivity.android.tiledscrollview;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.os.Build;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Turns the tiles of a {@link TileSource} into bitmaps.
+ * <p/>
+ * Tiles are decoded with a configurable {@link Bitmap.Config}, into recycled bitmaps from a
+ * {@link BitmapPool} where the platform allows it. Configuration sets naming a single large image
+ * are served by a {@link BitmapRegionDecoder} that cuts tiles on the fly, downsampled when that
+ * image is larger than the zoom level. Safe to use from several threads.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+class TileDecoder {
+    private final BitmapPool mBitmapPool;
+    private volatile Bitmap.Config mPreferredConfig = Bitmap.Config.ARGB_8888;
+
+    /** Region decoders by source image path, created on first use. */
+    private final Map<String, BitmapRegionDecoder> mRegionDecoders = new HashMap<String, BitmapRegionDecoder>();
+
+    TileDecoder(BitmapPool bitmapPool) {
+        mBitmapPool = bitmapPool;
+    }
+
+    /**
+     * Sets the config new tiles are decoded with, e.g. {@link Bitmap.Config#RGB_565} for opaque
+     * tiles at half the memory.
+     */
+    void setPreferredConfig(Bitmap.Config config) {
+        mPreferredConfig = config;
+    }
+
+    Bitmap.Config getPreferredConfig() {
+        return mPreferredConfig;
+    }
+
+    /**
+     * @return the largest power of two not exceeding <code>1 / scale</code>, i.e. the coarsest
+     *         sampling that still shows a tile drawn at the given scale without loss
+     */
+    static int sampleSizeForScale(float scale) {
+        int sampleSize = 1;
+        while (scale > 0f && scale * sampleSize * 2 <= 1f) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * Decodes a tile. Tile files are decoded at their natural size, which is expected to be the
+     * tile size of their configuration set.
+     */
+    Bitmap decode(TileSource source, ConfigurationSet set, Tile tile) throws IOException {
+        if (set.isRegionSource()) {
+            return decodeRegion(source, set, tile);
+        }
+
+        final BitmapFactory.Options options = newOptions(1);
+
+        // Before KitKat inBitmap only accepts bitmaps of the exact decoded size.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            setInBitmap(options, set.getTileWidthAt(tile.x), set.getTileHeightAt(tile.y));
+        }
+
+        Bitmap bitmap;
+        try {
+            bitmap = decodeTile(source, set, tile, options);
+        } catch (IllegalArgumentException e) {
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+                throw e;
+            }
+
+            // The pooled bitmap did not fit after all, fall back to a fresh one.
+            clearInBitmap(options);
+            bitmap = decodeTile(source, set, tile, options);
+        }
+
+        if (bitmap == null) {
+            throw new IOException("Cannot decode tile " + tile.x + "/" + tile.y + " of:" + set.getFilePattern());
+        }
+
+        return bitmap;
+    }
+
+    private Bitmap decodeTile(TileSource source, ConfigurationSet set, Tile tile, BitmapFactory.Options options) throws IOException {
+        final InputStream is = source.open(set, tile.x, tile.y);
+        try {
+            return BitmapFactory.decodeStream(is, null, options);
+        } finally {
+            is.close();
+        }
+    }
+
+    private Bitmap decodeRegion(TileSource source, ConfigurationSet set, Tile tile) throws IOException {
+        final BitmapRegionDecoder decoder = getRegionDecoder(source, set.getFilePattern());
+
+        // The source image may be larger than this zoom level, e.g. when all levels share it.
+        final float scale = (float) decoder.getWidth() / set.getImageWidth();
+        final int left = tile.x * set.getTileWidth();
+        final int top = tile.y * set.getTileHeight();
+        final Rect region = new Rect(
+                (int) (left * scale),
+                (int) (top * scale),
+                Math.min(decoder.getWidth(), (int) Math.ceil((left + set.getTileWidthAt(tile.x)) * scale)),
+                Math.min(decoder.getHeight(), (int) Math.ceil((top + set.getTileHeightAt(tile.y)) * scale)));
+
+        final BitmapFactory.Options options = newOptions(sampleSizeForScale(1f / scale));
+        final Bitmap bitmap;
+        try {
+            bitmap = decoder.decodeRegion(region, options);
+        } catch (IllegalStateException e) {
+            // Released while this tile was waiting.
+            throw new IOException("Region decoder was released: " + set.getFilePattern());
+        }
+
+        if (bitmap == null) {
+            throw new IOException("Cannot decode region " + region + " of:" + set.getFilePattern());
+        }
+
+        return bitmap;
+    }
+
+    @TargetApi(Build.VERSION_CODES.GINGERBREAD_MR1)
+    private BitmapRegionDecoder getRegionDecoder(TileSource source, String path) throws IOException {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD_MR1) {
+            throw new IOException("Cutting tiles from a single image requires API level 10");
+        }
+
+        synchronized (mRegionDecoders) {
+            BitmapRegionDecoder decoder = mRegionDecoders.get(path);
+
+            if (decoder == null) {
+                final InputStream is = source.openImage(path);
+                try {
+                    decoder = BitmapRegionDecoder.newInstance(is, false);
+                } finally {
+                    is.close();
+                }
+                mRegionDecoders.put(path, decoder);
+            }
+
+            return decoder;
+        }
+    }
+
+    /** Frees the native memory of all region decoders. */
+    void release() {
+        synchronized (mRegionDecoders) {
+            for (BitmapRegionDecoder decoder : mRegionDecoders.values()) {
+                decoder.recycle();
+            }
+            mRegionDecoders.clear();
+        }
+    }
+
+    private BitmapFactory.Options newOptions(int sampleSize) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = mPreferredConfig;
+        options.inSampleSize = sampleSize;
+        options.inDither = false;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            setMutable(options);
+        }
+
+        return options;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void setMutable(BitmapFactory.Options options) {
+        // Only mutable bitmaps can be decoded into later on.
+        options.inMutable = true;
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void setInBitmap(BitmapFactory.Options options, int width, int height) {
+        options.inBitmap = mBitmapPool.get(width, height, mPreferredConfig);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private static void clearInBitmap(BitmapFactory.Options options) {
+        options.inBitmap = null;
+    }
+}
@@ -0,0 +1,257 @@
+package asia.ivity.android.tiledscrollview;
+
+/**
+ * Decides which tiles of a viewport to request, and in which order, without depending on the
+ * Android framework. Showing, caching and decoding tiles is left to a {@link Host}, so the same
+ * decisions can be replayed on a plain JVM, see the <code>TraceReplayer</code> of the tools
+ * module. The timing and priority defaults below are shared with it for the same reason.
+ * <p/>
+ * Remembers the tile range it last covered, so incremental loading only requests the tiles a
+ * scroll exposed. Not thread safe.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+class TileLoadEngine {
+    /** {@link #loadExposed} found the viewport unchanged. */
+    static final int UNCHANGED = 0;
+
+    /** {@link #loadExposed} requested every exposed tile. */
+    static final int COMPLETE = 1;
+
+    /** {@link #loadExposed} ran out of budget, call it again for the remaining tiles. */
+    static final int INCOMPLETE = 2;
+
+    /** Time after the last scroll until the whole viewport is filled, in ms. */
+    static final int FILL_TILES_DELAY = 200;
+
+    /** Tiles requested per scroll frame when loading incrementally. */
+    static final int DEFAULT_TILES_PER_FRAME = 8;
+
+    /** Upper bound of tiles requested ahead of a single fling. */
+    static final int MAX_PREFETCH_TILES = 64;
+
+    static final int DEFAULT_THREAD_COUNT = 2;
+
+    /** Added to the priority of prefetch requests, so they run after all regular requests. */
+    static final long PREFETCH_PRIORITY = Long.MAX_VALUE / 2;
+
+    /**
+     * Added to the priority of region requests, so they run after regular requests but before
+     * prefetch requests.
+     */
+    static final long REGION_PRIORITY = Long.MAX_VALUE / 4;
+
+    /** Tile state and the work the engine hands out. */
+    interface Host {
+        /** @return whether the tile is on screen, or will be drawn as soon as its area is visible */
+        boolean isShown(int level, int col, int row);
+
+        /** @return whether the tile is queued or being decoded */
+        boolean isPending(int level, int col, int row);
+
+        /** @return whether the tile is in the memory cache, without counting as a cache access */
+        boolean isCached(int level, int col, int row);
+
+        /** Shows the tile from the memory cache. @return false if it is not cached */
+        boolean showCached(int level, int col, int row);
+
+        /** Queues a decode of the tile. Lower priorities are decoded first. */
+        void schedule(int level, int col, int row, long priority);
+
+        /** Changes the priority of a tile that is already pending. */
+        void reprioritize(int level, int col, int row, long priority);
+
+        /** Queues a decode of a tile that is expected to become visible. */
+        void schedulePrefetch(int level, int col, int row, long priority);
+
+        /** Drops regular requests outside of the given range of the given level. */
+        void retain(int level, TileRange range);
+    }
+
+    private final Host mHost;
+
+    /** Tile range of {@link #mCoveredLevel} whose tiles have all been requested. */
+    private final TileRange mCoveredRange = new TileRange();
+    private int mCoveredLevel = -1;
+    private final TileRange mRange = new TileRange();
+
+    TileLoadEngine(Host host) {
+        mHost = host;
+    }
+
+    /**
+     * Computes the tiles covering a viewport scrolled to the given position, plus one tile to
+     * the right and bottom.
+     */
+    static void computeTileRange(ConfigurationSet set, int scrollX, int scrollY,
+                                 int viewWidth, int viewHeight, TileRange out) {
+        // Update the logic here. Sometimes, we don't need to add 1 tile to the right and bottom,
+        // as it might be already exact. In that case, it's loading tiles that will be cleaned up
+        // immediately in #cleanupTiles().
+        final int width = viewWidth + scrollX + set.getTileWidth();
+        final int height = viewHeight + scrollY + set.getTileHeight();
+
+        out.left = set.getColumnAt(scrollX);
+        out.top = set.getRowAt(scrollY);
+        out.right = set.getColumnAt(width - 1);
+        out.bottom = set.getRowAt(height - 1);
+    }
+
+    /**
+     * @return how many tiles to prefetch for a fling: at most {@link #MAX_PREFETCH_TILES}, and
+     *         no more than fill half of the memory cache, so prefetching never pushes visible
+     *         tiles out of it.
+     */
+    static int prefetchBudget(ConfigurationSet set, int cacheBytes) {
+        return Math.min(MAX_PREFETCH_TILES, cacheBytes / 2 / (set.getTileWidth() * set.getTileHeight() * 4));
+    }
+
+    /**
+     * Requests every missing tile of the viewport, closest to its center first, and drops
+     * requests for tiles that have left it.
+     */
+    void fill(ConfigurationSet set, int level, int scrollX, int scrollY, int viewWidth, int viewHeight) {
+        final TileRange range = mRange;
+        computeTileRange(set, scrollX, scrollY, viewWidth, viewHeight, range);
+
+        // Requests for tiles that have left the viewport would only delay the visible ones.
+        mHost.retain(level, range);
+
+        final int centerX = scrollX + viewWidth / 2;
+        final int centerY = scrollY + viewHeight / 2;
+
+        for (int row = range.top; row <= range.bottom; row++) {
+            for (int col = range.left; col <= range.right; col++) {
+                requestTile(set, level, col, row, centerX, centerY);
+            }
+        }
+
+        mCoveredRange.set(range);
+        mCoveredLevel = level;
+    }
+
+    /**
+     * Requests only the tiles that became visible since the last call, at most
+     * <code>budget</code> of them.
+     *
+     * @return {@link #UNCHANGED}, {@link #COMPLETE} or {@link #INCOMPLETE}
+     */
+    int loadExposed(ConfigurationSet set, int level, int scrollX, int scrollY,
+                    int viewWidth, int viewHeight, int budget) {
+        final TileRange range = mRange;
+        computeTileRange(set, scrollX, scrollY, viewWidth, viewHeight, range);
+
+        final boolean sameLevel = level == mCoveredLevel;
+        if (sameLevel && range.sameAs(mCoveredRange)) {
+            return UNCHANGED;
+        }
+
+        mHost.retain(level, range);
+
+        final int centerX = scrollX + viewWidth / 2;
+        final int centerY = scrollY + viewHeight / 2;
+
+        for (int row = range.top; row <= range.bottom; row++) {
+            for (int col = range.left; col <= range.right; col++) {
+                if (sameLevel && mCoveredRange.contains(col, row)) {
+                    continue;
+                }
+
+                if (budget == 0) {
+                    return INCOMPLETE;
+                }
+
+                if (requestTile(set, level, col, row, centerX, centerY)) {
+                    budget--;
+                }
+            }
+        }
+
+        mCoveredRange.set(range);
+        mCoveredLevel = level;
+        return COMPLETE;
+    }
+
+    /**
+     * Makes sure the given tile is shown or on its way: a cached bitmap is shown right away, a
+     * missing one is queued by its distance to (centerX, centerY).
+     *
+     * @return true if the tile was shown or newly queued, false if there was nothing to do
+     */
+    private boolean requestTile(ConfigurationSet set, int level, int col, int row, int centerX, int centerY) {
+        if (mHost.isShown(level, col, row)) {
+            return false;
+        }
+
+        final long dx = col * set.getTileWidth() + set.getTileWidth() / 2 - centerX;
+        final long dy = row * set.getTileHeight() + set.getTileHeight() / 2 - centerY;
+
+        if (mHost.isPending(level, col, row)) {
+            mHost.reprioritize(level, col, row, dx * dx + dy * dy);
+            return false;
+        }
+
+        if (mHost.showCached(level, col, row)) {
+            return true;
+        }
+
+        mHost.schedule(level, col, row, dx * dx + dy * dy);
+        return true;
+    }
+
+    /**
+     * Requests the tiles the viewport will pass over during a fling, starting at the position
+     * where it will come to rest and walking back towards the start.
+     *
+     * @param budget maximum number of tiles to request
+     */
+    void prefetchFlingPath(ConfigurationSet set, int level, int startX, int startY, int finalX, int finalY,
+                           int viewWidth, int viewHeight, int budget) {
+        if (viewWidth == 0 || viewHeight == 0) {
+            return;
+        }
+
+        final float dx = startX - finalX;
+        final float dy = startY - finalY;
+        final int step = Math.max(1, Math.min(viewWidth, viewHeight) / 2);
+        final int steps = (int) (Math.sqrt(dx * dx + dy * dy) / step);
+
+        for (int i = 0; i <= steps && budget > 0; i++) {
+            final float f = steps == 0 ? 0f : (float) i / steps;
+            budget = prefetchViewport(set, level, finalX + (int) (dx * f), finalY + (int) (dy * f),
+                    viewWidth, viewHeight, finalX + viewWidth / 2, finalY + viewHeight / 2, budget);
+        }
+    }
+
+    /**
+     * Requests the missing tiles of a viewport at the given scroll position, ranked by their
+     * distance to the fling's landing point.
+     *
+     * @return the remaining budget
+     */
+    private int prefetchViewport(ConfigurationSet set, int level, int scrollX, int scrollY,
+                                 int viewWidth, int viewHeight, int targetX, int targetY, int budget) {
+        final TileRange range = mRange;
+        computeTileRange(set, scrollX, scrollY, viewWidth, viewHeight, range);
+
+        for (int row = range.top; row <= range.bottom; row++) {
+            for (int col = range.left; col <= range.right; col++) {
+                if (budget == 0) {
+                    return 0;
+                }
+
+                if (mHost.isShown(level, col, row) || mHost.isPending(level, col, row)
+                        || mHost.isCached(level, col, row)) {
+                    continue;
+                }
+
+                final long dx = col * set.getTileWidth() + set.getTileWidth() / 2 - targetX;
+                final long dy = row * set.getTileHeight() + set.getTileHeight() / 2 - targetY;
+                mHost.schedulePrefetch(level, col, row, dx * dx + dy * dy);
+                budget--;
+            }
+        }
+
+        return budget;
+    }
+}
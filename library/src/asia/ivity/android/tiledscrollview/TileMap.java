@@ -0,0 +1,237 @@
+package asia.ivity.android.tiledscrollview;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Map from packed tile keys, see {@link Tile#key(int, int, int)}, to objects.
+ * <p/>
+ * Entries live in an open addressing table of primitive keys, probed linearly, so lookups
+ * neither box keys nor allocate nodes. Each entry keeps its slot until it is removed or the
+ * table grows, and that slot index can be used to walk the entries.
+ * <p/>
+ * Only one thread, usually the UI thread, may modify the map. Any number of other threads may
+ * call {@link #get(long)}, {@link #containsKey(long)} and {@link #size()} at the same time
+ * without locking: removed slots are marked as deleted and never refilled, and a grown table is
+ * only published once it is complete. A reader therefore always sees the value of its key as
+ * of some moment during its call.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+class TileMap<V> {
+    /** Marks a slot that was never used. Tile keys are never negative. */
+    private static final long EMPTY = -1L;
+
+    /** Marks a slot whose entry was removed. */
+    private static final long DELETED = -2L;
+
+    private static final int MIN_CAPACITY = 16;
+
+    private static final class Table {
+        final AtomicLongArray keys;
+        final AtomicReferenceArray<Object> values;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new AtomicLongArray(capacity);
+            values = new AtomicReferenceArray<Object>(capacity);
+            mask = capacity - 1;
+
+            for (int i = 0; i < capacity; i++) {
+                keys.lazySet(i, EMPTY);
+            }
+        }
+
+        int capacity() {
+            return mask + 1;
+        }
+    }
+
+    private volatile Table mTable;
+    private volatile int mSize;
+
+    /** Slots that are not empty, including deleted ones. Only touched by the writer. */
+    private int mUsed;
+
+    TileMap() {
+        this(MIN_CAPACITY);
+    }
+
+    TileMap(int expectedSize) {
+        mTable = new Table(capacityFor(expectedSize));
+    }
+
+    /** @return a power of two large enough to hold the given number of entries. */
+    private static int capacityFor(int size) {
+        int capacity = MIN_CAPACITY;
+        while (capacity / 2 < size) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /** Spreads packed keys, whose low bits are the column, over the whole table. */
+    private static int hash(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+        return (int) key;
+    }
+
+    /** @return the slot holding the key in the given table, or -1. */
+    private static int find(Table table, long key) {
+        final int mask = table.mask;
+
+        for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+            final long slotKey = table.keys.get(slot);
+            if (slotKey == key) {
+                return slot;
+            }
+            if (slotKey == EMPTY) {
+                return -1;
+            }
+        }
+    }
+
+    /** Safe to call from any thread. */
+    @SuppressWarnings("unchecked")
+    V get(long key) {
+        final Table table = mTable;
+        final int slot = find(table, key);
+        return slot >= 0 ? (V) table.values.get(slot) : null;
+    }
+
+    /** Safe to call from any thread. */
+    boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return the slot of the given key, or -1. Only valid on the writing thread, until the next
+     *         {@link #put(long, Object)} or {@link #clear()}.
+     */
+    int indexOf(long key) {
+        return find(mTable, key);
+    }
+
+    /**
+     * @param value must not be <code>null</code>
+     * @return the value previously stored under the key, or <code>null</code>
+     */
+    @SuppressWarnings("unchecked")
+    V put(long key, V value) {
+        if (key < 0) {
+            throw new IllegalArgumentException("Tile keys are never negative, was: " + key);
+        }
+        if (value == null) {
+            throw new NullPointerException("value");
+        }
+
+        Table table = mTable;
+        final int existing = find(table, key);
+        if (existing >= 0) {
+            return (V) table.values.getAndSet(existing, value);
+        }
+
+        if (mUsed + 1 > table.capacity() / 2) {
+            table = rehash(capacityFor(mSize + 1) * 2);
+        }
+
+        int slot = hash(key) & table.mask;
+        while (table.keys.get(slot) != EMPTY) {
+            slot = (slot + 1) & table.mask;
+        }
+
+        // The value goes first, so readers finding the key also find its value.
+        table.values.set(slot, value);
+        table.keys.set(slot, key);
+        mUsed++;
+        mSize++;
+        return null;
+    }
+
+    /**
+     * Copies all entries into a new table of the given capacity, leaving deleted slots behind,
+     * and publishes it once complete.
+     */
+    private Table rehash(int capacity) {
+        final Table old = mTable;
+        final Table table = new Table(capacity);
+
+        for (int i = 0, n = old.capacity(); i < n; i++) {
+            final long key = old.keys.get(i);
+            if (key < 0) {
+                continue;
+            }
+
+            int slot = hash(key) & table.mask;
+            while (table.keys.get(slot) != EMPTY) {
+                slot = (slot + 1) & table.mask;
+            }
+            table.values.lazySet(slot, old.values.get(i));
+            table.keys.lazySet(slot, key);
+        }
+
+        mUsed = mSize;
+        mTable = table;
+        return table;
+    }
+
+    /** @return the value that was stored under the key, or <code>null</code>. */
+    V remove(long key) {
+        final int slot = indexOf(key);
+        return slot >= 0 ? removeAt(slot) : null;
+    }
+
+    /**
+     * Removes the entry in the given slot. Other entries keep their slots, so entries can be
+     * removed while walking the slots.
+     */
+    @SuppressWarnings("unchecked")
+    V removeAt(int slot) {
+        final Table table = mTable;
+        if (table.keys.get(slot) < 0) {
+            return null;
+        }
+
+        // The key goes first: a reader that still finds it may see the value or null, but never
+        // the value of another key, as deleted slots are not reused.
+        table.keys.set(slot, DELETED);
+        mSize--;
+        return (V) table.values.getAndSet(slot, null);
+    }
+
+    /** Safe to call from any thread. */
+    int size() {
+        return mSize;
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    /**
+     * @return the number of slots, which may hold entries. Walk them with {@link #valueAt(int)}
+     *         and {@link #keyAt(int)} on the writing thread.
+     */
+    int slotCount() {
+        return mTable.capacity();
+    }
+
+    /** @return the key in the given slot, or a negative value if it holds no entry. */
+    long keyAt(int slot) {
+        return mTable.keys.get(slot);
+    }
+
+    /** @return the value in the given slot, or <code>null</code> if it holds no entry. */
+    @SuppressWarnings("unchecked")
+    V valueAt(int slot) {
+        return (V) mTable.values.get(slot);
+    }
+
+    void clear() {
+        mTable = new Table(mTable.capacity());
+        mUsed = 0;
+        mSize = 0;
+    }
+}
@@ -0,0 +1,61 @@
+package asia.ivity.android.tiledscrollview;
+
+/**
+ * Receives timing and cache figures of tile loading, e.g. to tune tile size and cache budget
+ * for a device. All methods are called on the UI thread. Times are in nanoseconds.
+ * <p/>
+ * While no listener is set, nothing is measured.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+public interface TileMetricsListener {
+    /** The tile was cancelled before its decode started. */
+    int DROPPED_CANCELLED = 0;
+
+    /** The tile was decoded, but was no longer needed once it was done. */
+    int DROPPED_STALE = 1;
+
+    /** The tile could not be read or decoded. */
+    int DROPPED_FAILED = 2;
+
+    /**
+     * A requested tile was delivered to the UI thread.
+     *
+     * @param queueNanos  time between the request and the start of its decode
+     * @param decodeNanos time spent loading the tile, from the disk cache or its source
+     */
+    void onTileLoaded(int level, int x, int y, long queueNanos, long decodeNanos);
+
+    /**
+     * The first tile that was missing after a scroll or zoom appeared.
+     *
+     * @param nanos time since the scroll or zoom exposed the missing tile
+     * @param zoom  whether it was exposed by a zoom level change
+     */
+    void onFirstPaint(long nanos, boolean zoom);
+
+    /**
+     * A requested tile will not be shown. Prefetched tiles are not reported.
+     *
+     * @param reason one of {@link #DROPPED_CANCELLED}, {@link #DROPPED_STALE} and
+     *               {@link #DROPPED_FAILED}
+     */
+    void onTileDropped(int level, int x, int y, int reason);
+
+    /**
+     * Tile views that had scrolled beyond the eviction margin were detached. Their bitmaps stay in
+     * the memory cache until it evicts them.
+     *
+     * @param views the number of views detached
+     * @param bytes the bitmap bytes those views showed
+     */
+    void onTilesEvicted(int views, long bytes);
+
+    /**
+     * Reported once the tiles of a new viewport have been requested.
+     *
+     * @param memory the memory cache, with its hit counts and the bitmap bytes it holds
+     * @param disk   the disk cache, or <code>null</code> if there is none
+     */
+    void onCacheStats(TileCache memory, DiskTileCache disk);
+}
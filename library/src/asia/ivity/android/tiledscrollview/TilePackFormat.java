@@ -0,0 +1,38 @@
+package asia.ivity.android.tiledscrollview;
+
+/**
+ * Layout of the tile pack files read by {@link PackFileTileSource} and written by the
+ * <code>TilePacker</code> of the tools module. Free of Android classes, so both share it.
+ * <p/>
+ * A pack holds any number of zoom levels, each identified by the file pattern it was packed
+ * from. All numbers are big-endian:
+ * <pre>
+ * int     magic "TPAK"
+ * int     version
+ * int     level count
+ * level count times:
+ *   short   pattern length, followed by the UTF-8 pattern
+ *   int     columns
+ *   int     rows
+ *   int     position of the offset table
+ * per level, an offset table of columns * rows + 1 absolute ints
+ * tile data
+ * </pre>
+ * Tile (x, y) spans the bytes from offset <code>y * columns + x</code> to the next one; an empty
+ * span marks a missing tile.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+final class TilePackFormat {
+    static final int MAGIC = 0x5450414B;
+    static final int VERSION = 2;
+
+    /** Bytes of the magic, version and level count. */
+    static final int HEADER_BYTES = 12;
+
+    /** Bytes of a level entry besides its pattern: pattern length, columns, rows and position. */
+    static final int LEVEL_BYTES = 2 + 12;
+
+    private TilePackFormat() {
+    }
+}
@@ -0,0 +1,39 @@
+package asia.ivity.android.tiledscrollview;
+
+/**
+ * Inclusive range of tile columns and rows: left/top hold the first column/row and right/bottom
+ * the last. Like {@link android.graphics.Rect}, but usable off the device.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+class TileRange {
+    int left;
+    int top;
+    int right;
+    int bottom;
+
+    void set(TileRange other) {
+        left = other.left;
+        top = other.top;
+        right = other.right;
+        bottom = other.bottom;
+    }
+
+    boolean contains(int col, int row) {
+        return col >= left && col <= right && row >= top && row <= bottom;
+    }
+
+    boolean sameAs(TileRange other) {
+        return left == other.left && top == other.top && right == other.right && bottom == other.bottom;
+    }
+
+    @Override
+    public String toString() {
+        return "TileRange{" +
+                "left=" + left +
+                ", top=" + top +
+                ", right=" + right +
+                ", bottom=" + bottom +
+                '}';
+    }
+}
@@ -0,0 +1,145 @@
+package asia.ivity.android.tiledscrollview;
+
+/**
+ * Handle of a request to load all tiles of a region into the tile cache, see
+ * {@link TiledScrollViewWorker#requestRegion(android.graphics.Rect, int, Listener)}.
+ * <p/>
+ * Tiles that were already cached count as loaded from the start. Every other tile is reported to
+ * the listener once it is in the cache or could not be loaded. Must only be used on the UI thread.
+ * <p/>
+ * Completion means that every tile was decoded into the cache once, not that all of them are
+ * still there: tiles are not held for the request, and the cache may evict any of them again,
+ * e.g. when the region is larger than the cache or the user keeps scrolling elsewhere.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+public class TileRegionRequest {
+    /** Receives the progress of a region request on the UI thread. Not called once cancelled. */
+    public interface Listener {
+        /**
+         * A tile of the region was loaded or failed.
+         *
+         * @param done  tiles loaded or failed so far
+         * @param total tiles in the region
+         */
+        void onProgress(TileRegionRequest request, int done, int total);
+
+        /**
+         * Every tile of the region was loaded or failed. Called exactly once. Loaded tiles may
+         * have been evicted from the cache again by now.
+         */
+        void onComplete(TileRegionRequest request);
+    }
+
+    private final TileRegionTracker mTracker;
+    private final Listener mListener;
+    private final int mLevel;
+    private final TileRange mRange;
+    private final int mTileCount;
+
+    private int mLoadedCount;
+    private int mFailedCount;
+    private boolean mCancelled;
+    private boolean mCompleted;
+
+    TileRegionRequest(TileRegionTracker tracker, int level, TileRange range, Listener listener) {
+        mTracker = tracker;
+        mLevel = level;
+        mRange = range;
+        mListener = listener;
+        mTileCount = Math.max(0, range.right - range.left + 1) * Math.max(0, range.bottom - range.top + 1);
+    }
+
+    public int getLevel() {
+        return mLevel;
+    }
+
+    /** @return the number of tiles in the region. */
+    public int getTileCount() {
+        return mTileCount;
+    }
+
+    public int getLoadedCount() {
+        return mLoadedCount;
+    }
+
+    public int getFailedCount() {
+        return mFailedCount;
+    }
+
+    /** @return whether every tile of the region was loaded or failed. */
+    public boolean isDone() {
+        return mLoadedCount + mFailedCount == mTileCount;
+    }
+
+    public boolean isCancelled() {
+        return mCancelled;
+    }
+
+    /**
+     * Stops loading the remaining tiles, unless they are visible or requested by another region.
+     * The listener is not called anymore. Does nothing once the request completed.
+     */
+    public void cancel() {
+        if (mCancelled || mCompleted) {
+            return;
+        }
+
+        mCancelled = true;
+        mTracker.cancel(this);
+    }
+
+    TileRange getRange() {
+        return mRange;
+    }
+
+    /** Counts a tile that was in the cache when the request was made. */
+    void addCached() {
+        mLoadedCount++;
+    }
+
+    /** Ends the request without further callbacks, e.g. because the view went away. */
+    void abandon() {
+        mCancelled = true;
+    }
+
+    void onTileFinished(boolean success) {
+        if (mCancelled) {
+            return;
+        }
+
+        if (success) {
+            mLoadedCount++;
+        } else {
+            mFailedCount++;
+        }
+
+        if (mListener != null) {
+            mListener.onProgress(this, mLoadedCount + mFailedCount, mTileCount);
+        }
+        dispatchIfComplete();
+    }
+
+    void dispatchIfComplete() {
+        if (mCancelled || mCompleted || !isDone()) {
+            return;
+        }
+
+        mCompleted = true;
+        if (mListener != null) {
+            mListener.onComplete(this);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "TileRegionRequest{" +
+                "level=" + mLevel +
+                ", range=" + mRange +
+                ", loaded=" + mLoadedCount +
+                ", failed=" + mFailedCount +
+                ", total=" + mTileCount +
+                ", cancelled=" + mCancelled +
+                '}';
+    }
+}
@@ -0,0 +1,143 @@
+package asia.ivity.android.tiledscrollview;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps track of which {@link TileRegionRequest}s wait for which tiles, without depending on the
+ * Android framework. Checking the cache, scheduling decodes and posting to the UI thread is left
+ * to a {@link Host}. Must only be used on the UI thread.
+ * <p/>
+ * A region is complete once each of its tiles was in the cache at some point, either when the
+ * request was made or when its decode finished, or failed to load. Tiles are not held in the
+ * cache for the request, so a tile may already be evicted again when the listener hears about
+ * it.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+class TileRegionTracker {
+    /** Tile state and the work the tracker hands out. */
+    interface Host {
+        /** @return whether the tile is in the memory cache */
+        boolean isCached(int level, int col, int row);
+
+        /** Queues a pinned decode of the tile. Lower priorities are decoded first. */
+        void scheduleRegion(int level, int col, int row, long priority);
+
+        /** Releases the pin of a tile no region waits for anymore. */
+        void unpin(int level, int col, int row);
+
+        /** Runs the action on the UI thread, after the current call returned. */
+        void post(Runnable action);
+    }
+
+    private final Host mHost;
+
+    /** Region requests waiting for a tile, by {@link Tile#key(int, int, int)}. */
+    private final TileMap<ArrayList<TileRegionRequest>> mWaiters =
+            new TileMap<ArrayList<TileRegionRequest>>();
+
+    TileRegionTracker(Host host) {
+        mHost = host;
+    }
+
+    /**
+     * Requests every tile of the range that is not cached yet, in rows from the top left.
+     *
+     * @param listener may be <code>null</code>
+     */
+    TileRegionRequest request(int level, TileRange range, TileRegionRequest.Listener listener) {
+        final TileRegionRequest request = new TileRegionRequest(this, level, range, listener);
+        long order = 0;
+
+        for (int row = range.top; row <= range.bottom; row++) {
+            for (int col = range.left; col <= range.right; col++) {
+                if (mHost.isCached(level, col, row)) {
+                    request.addCached();
+                    continue;
+                }
+
+                final long key = Tile.key(level, col, row);
+                ArrayList<TileRegionRequest> waiting = mWaiters.get(key);
+                if (waiting == null) {
+                    waiting = new ArrayList<TileRegionRequest>(2);
+                    mWaiters.put(key, waiting);
+                }
+                waiting.add(request);
+
+                mHost.scheduleRegion(level, col, row, order++);
+            }
+        }
+
+        // Callers get hold of the request before hearing that it is complete.
+        if (request.isDone()) {
+            mHost.post(new Runnable() {
+                @Override
+                public void run() {
+                    request.dispatchIfComplete();
+                }
+            });
+        }
+
+        return request;
+    }
+
+    /**
+     * A pinned decode ended.
+     *
+     * @param success whether the tile is in the cache now
+     */
+    void onTileCached(Tile tile, boolean success) {
+        final ArrayList<TileRegionRequest> waiting = mWaiters.remove(tile.key());
+        if (waiting == null) {
+            return;
+        }
+
+        for (int i = 0, n = waiting.size(); i < n; i++) {
+            waiting.get(i).onTileFinished(success);
+        }
+    }
+
+    /**
+     * Stops waiting for the tiles of the given request, see {@link TileRegionRequest#cancel()}.
+     * Tiles other regions still wait for stay pinned.
+     */
+    void cancel(TileRegionRequest request) {
+        final TileRange range = request.getRange();
+        final int level = request.getLevel();
+
+        for (int row = range.top; row <= range.bottom; row++) {
+            for (int col = range.left; col <= range.right; col++) {
+                final long key = Tile.key(level, col, row);
+                final ArrayList<TileRegionRequest> waiting = mWaiters.get(key);
+
+                if (waiting != null && waiting.remove(request) && waiting.isEmpty()) {
+                    mWaiters.remove(key);
+                    mHost.unpin(level, col, row);
+                }
+            }
+        }
+    }
+
+    /**
+     * Ends all region requests without further callbacks, as their tiles are not going to
+     * arrive. Pins are left to the caller, which is expected to cancel all decodes.
+     */
+    void abandonAll() {
+        for (int i = 0, n = mWaiters.slotCount(); i < n; i++) {
+            final ArrayList<TileRegionRequest> waiting = mWaiters.valueAt(i);
+            if (waiting == null) {
+                continue;
+            }
+
+            for (int j = 0, m = waiting.size(); j < m; j++) {
+                waiting.get(j).abandon();
+            }
+        }
+        mWaiters.clear();
+    }
+
+    /** @return the number of tiles at least one region waits for. */
+    int getWaitingTileCount() {
+        return mWaiters.size();
+    }
+}
@@ -0,0 +1,111 @@
+package asia.ivity.android.tiledscrollview;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Provides the encoded bytes of tiles, e.g. from the APK assets, the file system or a server.
+ * <p/>
+ * A source is chosen per {@link ConfigurationSet}. Every source keeps track of how long it takes
+ * to make a tile available. The worker decodes the tiles of each source on their own threads, so
+ * a slow source never delays the tiles of a fast one.
+ * <p/>
+ * Implementations must be safe to use from several threads.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+public abstract class TileSource {
+    /** Weight of the newest sample in the moving latency average. */
+    private static final float LATENCY_SMOOTHING = 0.2f;
+
+    private long mRequestCount;
+    private long mFailureCount;
+    private float mAverageLatencyMillis;
+    private float mMaxLatencyMillis;
+
+    /**
+     * Opens tile (x, y) of the given configuration set and records how long that took.
+     */
+    final InputStream open(ConfigurationSet set, int x, int y) throws IOException {
+        final long start = System.nanoTime();
+        boolean success = false;
+        try {
+            final InputStream is = openTile(set, x, y);
+            success = true;
+            return is;
+        } finally {
+            record(System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * Opens a whole image, used when tiles are cut from a single source image.
+     */
+    final InputStream openImage(String path) throws IOException {
+        final long start = System.nanoTime();
+        boolean success = false;
+        try {
+            final InputStream is = openPath(path);
+            success = true;
+            return is;
+        } finally {
+            record(System.nanoTime() - start, success);
+        }
+    }
+
+    /**
+     * Opens tile (x, y). The default implementation resolves the file pattern of the set and
+     * calls {@link #openPath(String)}.
+     */
+    protected InputStream openTile(ConfigurationSet set, int x, int y) throws IOException {
+        return openPath(set.getTilePath(x, y));
+    }
+
+    /**
+     * Opens the file at the given path, relative to whatever root this source reads from.
+     */
+    protected abstract InputStream openPath(String path) throws IOException;
+
+    /**
+     * @return a string that tells this source apart from other sources of the same class, e.g.
+     *         its base directory or URL. Stays the same across restarts, since decoded tiles are
+     *         cached on disk under it. Sources reading from a configurable root must override
+     *         this; the default is only the class name.
+     */
+    public String getIdentity() {
+        return getClass().getName();
+    }
+
+    private synchronized void record(long nanos, boolean success) {
+        final float millis = nanos / 1000000f;
+
+        mRequestCount++;
+        if (!success) {
+            mFailureCount++;
+        }
+
+        mAverageLatencyMillis = mRequestCount == 1 ? millis
+                : mAverageLatencyMillis + LATENCY_SMOOTHING * (millis - mAverageLatencyMillis);
+        mMaxLatencyMillis = Math.max(mMaxLatencyMillis, millis);
+    }
+
+    /** @return number of tiles and images requested from this source. */
+    public synchronized long getRequestCount() {
+        return mRequestCount;
+    }
+
+    /** @return number of requests that failed. */
+    public synchronized long getFailureCount() {
+        return mFailureCount;
+    }
+
+    /** @return moving average of the time needed to open a tile, in milliseconds. */
+    public synchronized float getAverageLatencyMillis() {
+        return mAverageLatencyMillis;
+    }
+
+    /** @return the longest time needed to open a tile so far, in milliseconds. */
+    public synchronized float getMaxLatencyMillis() {
+        return mMaxLatencyMillis;
+    }
+}
@@ -0,0 +1,66 @@
+package asia.ivity.android.tiledscrollview;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.view.View;
+
+/**
+ * Minimal view showing a single tile bitmap, stretched to the size of the view.
+ * <p/>
+ * Unlike an {@link android.widget.ImageView} it does not wrap the bitmap into a new drawable
+ * whenever it is rebound, so recycled views can show another tile without allocating.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+class TileView extends View {
+    /** Smooths tiles that were decoded at a reduced sample size. */
+    private static final Paint PAINT = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private final int mPoolKey;
+    private final Rect mDst = new Rect();
+    private final Tile mTile = new Tile(0, 0, 0);
+    private Bitmap mBitmap;
+
+    TileView(Context context, int poolKey) {
+        super(context);
+        mPoolKey = poolKey;
+    }
+
+    int getPoolKey() {
+        return mPoolKey;
+    }
+
+    /** @return the tile this view was last bound to. Owned by the view, callers must not change it. */
+    Tile getTile() {
+        return mTile;
+    }
+
+    /** Binds this view to a copy of the given tile. */
+    void setTile(Tile tile) {
+        mTile.level = tile.level;
+        mTile.x = tile.x;
+        mTile.y = tile.y;
+    }
+
+    Bitmap getBitmap() {
+        return mBitmap;
+    }
+
+    void setBitmap(Bitmap bitmap) {
+        if (mBitmap != bitmap) {
+            mBitmap = bitmap;
+            invalidate();
+        }
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        if (mBitmap != null) {
+            mDst.set(0, 0, getWidth(), getHeight());
+            canvas.drawBitmap(mBitmap, null, mDst, PAINT);
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package asia.ivity.android.tiledscrollview;
+
+import android.content.Context;
+import android.util.SparseArray;
+import android.view.Gravity;
+import android.widget.FrameLayout;
+
+import java.util.ArrayList;
+
+/**
+ * Pool of detached tile views, grouped by tile size.
+ * <p/>
+ * Views taken from the pool keep their layout params, so re-binding a view to another tile only
+ * updates margins and size in place. All methods must be called from the UI thread.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+public class TileViewPool {
+    /** Idle views kept per tile size; views released beyond that are dropped. */
+    static final int MAX_IDLE_PER_SIZE = 64;
+
+    private final Context mContext;
+    private final SparseArray<ArrayList<TileView>> mIdle = new SparseArray<ArrayList<TileView>>();
+    private int mIdleCount;
+    private int mCreateCount;
+    private int mReuseCount;
+
+    TileViewPool(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Returns a detached view for tiles of the given size, creating one only if the pool is
+     * empty.
+     */
+    TileView acquire(int tileWidth, int tileHeight) {
+        final int key = poolKey(tileWidth, tileHeight);
+        final ArrayList<TileView> idle = mIdle.get(key);
+
+        if (idle != null && !idle.isEmpty()) {
+            mIdleCount--;
+            mReuseCount++;
+            return idle.remove(idle.size() - 1);
+        }
+
+        mCreateCount++;
+
+        final TileView view = new TileView(mContext, key);
+        final FrameLayout.LayoutParams lp = new FrameLayout.LayoutParams(tileWidth, tileHeight);
+        lp.gravity = Gravity.TOP | Gravity.LEFT;
+        view.setLayoutParams(lp);
+        return view;
+    }
+
+    /** Hands a view that has already been removed from its parent back to the pool. */
+    void release(TileView view) {
+        view.setBitmap(null);
+
+        ArrayList<TileView> idle = mIdle.get(view.getPoolKey());
+        if (idle == null) {
+            idle = new ArrayList<TileView>(MAX_IDLE_PER_SIZE);
+            mIdle.put(view.getPoolKey(), idle);
+        }
+
+        if (idle.size() < MAX_IDLE_PER_SIZE) {
+            idle.add(view);
+            mIdleCount++;
+        }
+    }
+
+    /** Drops all idle views. */
+    public void clear() {
+        mIdle.clear();
+        mIdleCount = 0;
+    }
+
+    /** @return number of idle views currently held. */
+    public int size() {
+        return mIdleCount;
+    }
+
+    /** @return number of views created because the pool had none to offer. */
+    public int createCount() {
+        return mCreateCount;
+    }
+
+    /** @return number of times an idle view was handed out again. */
+    public int reuseCount() {
+        return mReuseCount;
+    }
+
+    private static int poolKey(int tileWidth, int tileHeight) {
+        return (tileWidth << 16) | (tileHeight & 0xffff);
+    }
+
+    @Override
+    public String toString() {
+        return "TileViewPool{" +
+                "size=" + mIdleCount +
+                ", created=" + mCreateCount +
+                ", reused=" + mReuseCount +
+                '}';
+    }
+}
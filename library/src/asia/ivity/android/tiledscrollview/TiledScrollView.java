@@ -2,6 +2,8 @@ package asia.ivity.android.tiledscrollview;
 
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
 import android.util.AttributeSet;
 import android.view.Gravity;
 import android.view.LayoutInflater;
@@ -9,6 +11,8 @@ import android.view.View;
 import android.widget.FrameLayout;
 import android.widget.ImageButton;
 
+import java.util.Collection;
+
 /**
  * Tiled scroll view main class.
  * <p/>
@@ -23,7 +27,15 @@ public class TiledScrollView extends FrameLayout {
     private ImageButton mBtnZoomDown;
     private ImageButton mBtnZoomUp;
     private boolean mZoomButtonsEnabled = true;
+    private OnLevelChangedListener mOnLevelChangedListener;
 
+    /**
+     * The first three zoom levels.
+     *
+     * @deprecated Zoom levels are plain indexes now, any number of them can be added with
+     *             {@link #addConfigurationSet(int, ConfigurationSet)}.
+     */
+    @Deprecated
     public enum ZoomLevel {
         DEFAULT,
         LEVEL_1,
@@ -72,9 +84,13 @@ public class TiledScrollView extends FrameLayout {
         LayoutInflater lf = LayoutInflater.from(getContext());
 
         mScrollView = new TiledScrollViewWorker(getContext(), attrs);
-        mScrollView.setOnZoomLevelChangedListener(new OnZoomLevelChangedListener() {
-            public void onZoomLevelChanged(ZoomLevel newLevel) {
+        mScrollView.setOnLevelChangedListener(new OnLevelChangedListener() {
+            public void onLevelChanged(int newLevel) {
                 updateZoomButtons();
+
+                if (mOnLevelChangedListener != null) {
+                    mOnLevelChangedListener.onLevelChanged(newLevel);
+                }
             }
         });
 
@@ -111,12 +127,42 @@ public class TiledScrollView extends FrameLayout {
         }
     }
 
-    public void addConfigurationSet(ZoomLevel level, ConfigurationSet set) {
+    /**
+     * Adds a zoom level. Level 0 is configured by the XML attributes, higher levels are expected
+     * to show the image larger.
+     */
+    public void addConfigurationSet(int level, ConfigurationSet set) {
         mScrollView.addConfigurationSet(level, set);
 
         updateZoomButtons();
     }
 
+    /** @deprecated Use {@link #addConfigurationSet(int, ConfigurationSet)}. */
+    @Deprecated
+    public void addConfigurationSet(ZoomLevel level, ConfigurationSet set) {
+        addConfigurationSet(level.ordinal(), set);
+    }
+
+    /** @return the index of the zoom level currently shown. */
+    public int getZoomLevel() {
+        return mScrollView.getZoomLevel();
+    }
+
+    /** Switches to the given zoom level, keeping the center of the view in place. */
+    public void setZoomLevel(int level) {
+        mScrollView.setZoomLevel(level);
+    }
+
+    /** Zooms to the given level with an animation, keeping the center of the view in place. */
+    public void animateZoomLevel(int level) {
+        mScrollView.animateZoomLevel(level);
+    }
+
+    /** @return the zoom level best suited for the given scale, see {@link TiledScrollViewWorker#findLevelForScale(float)}. */
+    public int findLevelForScale(float scale) {
+        return mScrollView.findLevelForScale(scale);
+    }
+
     private void updateZoomButtons() {
         if (mZoomButtonsEnabled) {
             if (!mScrollView.canZoomFurtherDown() && !mScrollView.canZoomFurtherUp()) {
@@ -131,15 +177,121 @@ public class TiledScrollView extends FrameLayout {
         }
     }
 
+    /**
+     * Loads all tiles of a region of the given zoom level into the tile cache, in pixels of that
+     * level. The returned request reports its progress and can be cancelled.
+     */
+    public TileRegionRequest requestRegion(Rect region, int level, TileRegionRequest.Listener listener) {
+        return mScrollView.requestRegion(region, level, listener);
+    }
+
+    /** Detaches tiles beyond the eviction margin now, instead of once scrolling has settled. */
     public void cleanupOldTiles() {
         mScrollView.cleanupOldTiles();
     }
 
-    public void addMarker(int x, int y, String description) {
-        mScrollView.addMarker(x, y, description);
+    /** Limits how many decoded tiles are attached to the container per frame. */
+    public void setAttachesPerFrame(int attachesPerFrame) {
+        mScrollView.setAttachesPerFrame(attachesPerFrame);
+    }
+
+    /** Sets how many rows and columns of tiles around the viewport stay attached once shown. */
+    public void setEvictionMargin(int tiles) {
+        mScrollView.setEvictionMargin(tiles);
+    }
+
+    /**
+     * Replaces the memory cache for decoded tiles. By default the cache may use
+     * {@link TileCache#DEFAULT_MEMORY_FRACTION} of the VM heap.
+     */
+    public void setTileCache(TileCache cache) {
+        mScrollView.setTileCache(cache);
+    }
+
+    public TileCache getTileCache() {
+        return mScrollView.getTileCache();
+    }
+
+    /** Requests tiles on every scroll frame instead of once scrolling stopped. */
+    public void setIncrementalLoading(boolean incremental) {
+        mScrollView.setIncrementalLoading(incremental);
+    }
+
+    /** Limits how many newly exposed tiles are requested per scroll frame in incremental mode. */
+    public void setTilesPerFrame(int tilesPerFrame) {
+        mScrollView.setTilesPerFrame(tilesPerFrame);
+    }
+
+    /** Sets the config tiles are decoded with, e.g. {@link Bitmap.Config#RGB_565} for opaque tiles. */
+    public void setPreferredBitmapConfig(Bitmap.Config config) {
+        mScrollView.setPreferredBitmapConfig(config);
+    }
+
+    /** Sets the number of background threads decoding tiles. */
+    public void setDecodeThreadCount(int threadCount) {
+        mScrollView.setDecodeThreadCount(threadCount);
+    }
+
+    /** @return the pool recycling tile views, e.g. to inspect its reuse counters. */
+    public TileViewPool getTileViewPool() {
+        return mScrollView.getTileViewPool();
+    }
+
+    public void setDiskTileCache(DiskTileCache cache) {
+        mScrollView.setDiskTileCache(cache);
+    }
+
+    public DiskTileCache getDiskTileCache() {
+        return mScrollView.getDiskTileCache();
+    }
+
+    public TileSource getAssetTileSource() {
+        return mScrollView.getAssetTileSource();
+    }
+
+    /** Adds a marker at the given position, in pixels of zoom level 0. */
+    public TiledScrollViewWorker.Marker addMarker(int x, int y, String description) {
+        return mScrollView.addMarker(x, y, description);
+    }
+
+    /** Adds many markers at once. */
+    public void addMarkers(Collection<? extends TiledScrollViewWorker.Marker> markers) {
+        mScrollView.addMarkers(markers);
+    }
+
+    public void removeMarker(TiledScrollViewWorker.Marker marker) {
+        mScrollView.removeMarker(marker);
+    }
+
+    public void clearMarkers() {
+        mScrollView.clearMarkers();
+    }
+
+    /** Shows markers that would overlap at the current zoom level as one {@link MarkerCluster}. */
+    public void setMarkerClustering(boolean clustering) {
+        mScrollView.setMarkerClustering(clustering);
     }
 
     public void setMarkerOnClickListener(OnClickListener listener) {
         mScrollView.setMarkerOnClickListener(listener);
     }
+
+    public void setOnLevelChangedListener(OnLevelChangedListener listener) {
+        mOnLevelChangedListener = listener;
+    }
+
+    /** @deprecated Use {@link #setOnLevelChangedListener(OnLevelChangedListener)}. */
+    @Deprecated
+    public void setOnZoomLevelChangedListener(OnZoomLevelChangedListener listener) {
+        mScrollView.setOnZoomLevelChangedListener(listener);
+    }
+
+    public void setOnMarkerClickListener(TiledScrollViewWorker.OnMarkerClickListener listener) {
+        mScrollView.setOnMarkerClickListener(listener);
+    }
+
+    /** Reports tile load times, dropped tiles and cache use, nothing is measured without a listener. */
+    public void setTileMetricsListener(TileMetricsListener listener) {
+        mScrollView.setTileMetricsListener(listener);
+    }
 }
@@ -24,28 +24,20 @@ import android.content.res.TypedArray;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Rect;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.Message;
 import android.util.AttributeSet;
 import android.util.FloatMath;
 import android.util.Log;
-import android.view.Gravity;
 import android.view.MotionEvent;
+import android.view.ViewTreeObserver;
 import android.view.animation.Animation;
 import android.view.animation.AnimationUtils;
 import android.widget.FrameLayout;
-import android.widget.ImageView;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.lang.ref.SoftReference;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Random;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.Collection;
 
 /**
  * Tiled Scroll View worker class that handles loading and display of the pictures.
@@ -54,67 +46,521 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class TiledScrollViewWorker extends TwoDScrollView {
     static final int UPDATE_TILES = 123;
-    //    static final int CLEANUP_OLD_TILES = 124;
-    static final int FILL_TILES_DELAY = 200;
+    static final int CLEANUP_OLD_TILES = 124;
+    static final int LOAD_EXPOSED_TILES = 125;
+
+    /** Time after the last tile request until tiles far off screen are detached, in ms. */
+    static final int CLEANUP_OLD_TILES_DELAY = 1000;
+
+    /** Rows and columns of tiles around the viewport that stay attached once shown. */
+    static final int DEFAULT_EVICTION_MARGIN = 1;
+
+    /**
+     * Bytes of evicted bitmaps kept around for decoding new tiles into. With tile views, a
+     * bitmap is only kept once it has left the tile cache and its view has been recycled.
+     */
+    static final int DEFAULT_BITMAP_POOL_BYTES = 4 * 1024 * 1024;
+
+    /** Decoded tiles attached to the container per frame, in view mode. */
+    static final int DEFAULT_ATTACHES_PER_FRAME = 4;
 
     private Animation mFadeInAnimation;
+    private OnLevelChangedListener mOnLevelChangedListener;
+    @SuppressWarnings("deprecation")
     private OnZoomLevelChangedListener onZoomLevelChangedListener = null;
-    private List<Marker> mMarkers = new ArrayList<Marker>();
+
+    private TileMetricsListener mMetricsListener;
+
+    /** When the viewport last moved or changed its level, while metrics are enabled. */
+    private long mViewportChangedAt;
+    private boolean mViewportChangeIsZoom;
+
+    /** When the viewport change that exposed a still missing tile happened, or 0. */
+    private long mFirstPaintStart;
+    private boolean mFirstPaintIsZoom;
+    private final MarkerIndex mMarkerIndex = new MarkerIndex();
+    private boolean mMarkerClustering = false;
 
     private OnClickListener mOnMarkerOnClickListener;
-    private List<ImageView> mMarkerViews = new ArrayList<ImageView>();
+    private OnMarkerClickListener mOnMarkerClickListener;
+
+    /** Draws the markers on top of the tiles, recreated with the container. */
+    private MarkerOverlayView mMarkerOverlay;
+
+    /** Shared by all markers, decoded once. */
+    private Bitmap mMarkerIcon;
+
+    /** Receives taps on markers and marker clusters. */
+    public interface OnMarkerClickListener {
+        void onMarkerClick(Marker marker);
+
+        void onMarkerClusterClick(MarkerCluster cluster);
+    }
 
+    /**
+     * Sets a listener for taps on markers. The view passed to it is tagged with the tapped
+     * {@link Marker} or {@link MarkerCluster} for the duration of the call.
+     */
     public void setMarkerOnClickListener(OnClickListener mOnMarkerOnClickListener) {
         this.mOnMarkerOnClickListener = mOnMarkerOnClickListener;
+        updateMarkerListeners();
     }
 
+    public void setOnMarkerClickListener(OnMarkerClickListener listener) {
+        mOnMarkerClickListener = listener;
+        updateMarkerListeners();
+    }
+
+    private void updateMarkerListeners() {
+        if (mMarkerOverlay != null) {
+            mMarkerOverlay.setOnMarkerClickListener(mOnMarkerOnClickListener, mOnMarkerClickListener);
+        }
+    }
+
+    public void setOnLevelChangedListener(OnLevelChangedListener listener) {
+        mOnLevelChangedListener = listener;
+    }
+
+    /**
+     * Only notified about the first three levels, which {@link TiledScrollView.ZoomLevel} can
+     * express. Set independently of {@link #setOnLevelChangedListener(OnLevelChangedListener)}.
+     *
+     * @deprecated Use {@link #setOnLevelChangedListener(OnLevelChangedListener)}.
+     */
+    @Deprecated
     public void setOnZoomLevelChangedListener(OnZoomLevelChangedListener listener) {
         this.onZoomLevelChangedListener = listener;
     }
 
-    public void addMarker(int x, int y, String description) {
-        mMarkers.add(new Marker(x, y, description));
+    /**
+     * Reports tile load times, dropped tiles and cache use to the given listener, or stops doing
+     * so for <code>null</code>. Nothing is measured while no listener is set.
+     */
+    public void setTileMetricsListener(TileMetricsListener listener) {
+        mMetricsListener = listener;
+        mFirstPaintStart = 0;
+        mDecodeScheduler.setTimingEnabled(listener != null);
     }
 
-    TiledScrollView.ZoomLevel mCurrentZoomLevel = TiledScrollView.ZoomLevel.DEFAULT;
+    /**
+     * Adds a marker at the given position, in pixels of zoom level 0. Markers follow the image
+     * to every other zoom level.
+     */
+    public Marker addMarker(int x, int y, String description) {
+        final Marker marker = new Marker(x, y, description);
+        mMarkerIndex.add(marker);
+        attachMarkers();
+        return marker;
+    }
 
-    Map<TiledScrollView.ZoomLevel, ConfigurationSet> mConfigurationSets = new HashMap<TiledScrollView.ZoomLevel, ConfigurationSet>();
+    /**
+     * Adds many markers at once, e.g. a whole set of points of interest.
+     */
+    public void addMarkers(Collection<? extends Marker> markers) {
+        mMarkerIndex.addAll(markers);
+        attachMarkers();
+    }
+
+    public void removeMarker(Marker marker) {
+        if (mMarkerIndex.remove(marker)) {
+            attachMarkers();
+        }
+    }
+
+    public void clearMarkers() {
+        mMarkerIndex.clear();
+        attachMarkers();
+    }
+
+    /**
+     * When enabled, markers that would overlap at the current zoom level are shown as a single
+     * {@link MarkerCluster} with their count.
+     */
+    public void setMarkerClustering(boolean clustering) {
+        mMarkerClustering = clustering;
+        attachMarkers();
+    }
+
+    /** Index of the zoom level currently shown. Level 0 is the one set up by the XML attributes. */
+    int mCurrentLevel = 0;
+
+    /**
+     * Configuration sets indexed by zoom level, with <code>null</code> for unused indexes. Replaced
+     * as a whole when a level is added, as decode threads read it without locking.
+     */
+    private volatile ConfigurationSet[] mLevels = new ConfigurationSet[1];
 
     private ConfigurationSet getCurrentConfigurationSet() {
-        if (mConfigurationSets.containsKey(mCurrentZoomLevel)) {
-            return mConfigurationSets.get(mCurrentZoomLevel);
+        return mLevels[mCurrentLevel];
+    }
+
+    private ConfigurationSet getConfigurationSet(int level) {
+        final ConfigurationSet[] levels = mLevels;
+        return level >= 0 && level < levels.length ? levels[level] : null;
+    }
+
+    private TileSource getTileSource(ConfigurationSet set) {
+        return set.getTileSource() != null ? set.getTileSource() : mAssetSource;
+    }
+
+    /** @return the source reading tiles from the APK assets, e.g. to inspect its latency. */
+    public TileSource getAssetTileSource() {
+        return mAssetSource;
+    }
+
+    /**
+     * Adds or replaces a zoom level. Levels are ordered by index, higher ones are expected to show
+     * the image larger. Indexes may be left out.
+     *
+     * @param level between 0 and 32767
+     */
+    public void addConfigurationSet(int level, ConfigurationSet set) {
+        Tile.checkLevel(level);
+        if (set == null) {
+            throw new IllegalArgumentException("Configuration set must not be null");
         }
 
-        return mConfigurationSets.get(TiledScrollView.ZoomLevel.DEFAULT);
+        final ConfigurationSet[] levels = new ConfigurationSet[Math.max(mLevels.length, level + 1)];
+        System.arraycopy(mLevels, 0, levels, 0, mLevels.length);
+        levels[level] = set;
+        mLevels = levels;
+
+        if (mContainer != null && level < mCurrentLevel) {
+            updateFallback();
+        }
     }
 
+    /** @deprecated Use {@link #addConfigurationSet(int, ConfigurationSet)}. */
+    @Deprecated
     public void addConfigurationSet(TiledScrollView.ZoomLevel level, ConfigurationSet set) {
-        mConfigurationSets.put(level, set);
+        addConfigurationSet(level.ordinal(), set);
     }
 
-    private FrameLayout mContainer;
+    /** @return the index of the zoom level currently shown. */
+    public int getZoomLevel() {
+        return mCurrentLevel;
+    }
+
+    /** @return one more than the highest zoom level index in use. */
+    public int getZoomLevelCount() {
+        return mLevels.length;
+    }
+
+    /** Switches to the given zoom level, keeping the center of the view in place. */
+    public void setZoomLevel(int level) {
+        changeZoomLevel(level, getScrollX() + getWidth() / 2f, getScrollY() + getHeight() / 2f,
+                getWidth() / 2f, getHeight() / 2f);
+    }
+
+    /** Zooms to the given level with an animation, keeping the center of the view in place. */
+    public void animateZoomLevel(int level) {
+        animateToLevel(level, getScrollX() + getWidth() / 2f, getScrollY() + getHeight() / 2f);
+    }
+
+    private ZoomingFrameLayout mContainer;
+
+    /** Draws all tiles when canvas rendering is enabled, <code>null</code> otherwise. */
+    private TileCanvasView mTileCanvas;
+    private boolean mCanvasRendering = false;
+
+    /**
+     * Draws the next lower level in place of tiles without a view yet, <code>null</code> when
+     * canvas rendering is enabled.
+     */
+    private TileCanvasView mPlaceholders;
+
+    private boolean mIncrementalLoading = false;
+    private int mTilesPerFrame = TileLoadEngine.DEFAULT_TILES_PER_FRAME;
+    private int mEvictionMargin = DEFAULT_EVICTION_MARGIN;
+    private int mAttachesPerFrame = DEFAULT_ATTACHES_PER_FRAME;
+
+    /**
+     * Decoded tiles waiting to be attached, in the order they arrived, and their bitmaps by
+     * {@link Tile#key(int, int, int)}.
+     */
+    private final ArrayList<Tile> mAttachQueue = new ArrayList<Tile>();
+    private final TileMap<Bitmap> mAttachBitmaps = new TileMap<Bitmap>();
+    private boolean mAttachScheduled;
+
+    /** Tiles that left {@link #mAttachQueue}, reused for the next ones queued. */
+    private final ArrayList<Tile> mSpareTiles = new ArrayList<Tile>();
+
+    private final Runnable mAttachFrame = new Runnable() {
+        @Override
+        public void run() {
+            mAttachScheduled = false;
+            attachQueuedTiles();
+        }
+    };
+
+    /** Tiles that stay attached, reused by {@link #cleanupOldTiles()}. */
+    private final TileRange mKeepRange = new TileRange();
+
+    /**
+     * Tiles of the previous zoom level, scaled to the current one, shown until the tiles of the
+     * current level have loaded. <code>null</code> when there is nothing to bridge.
+     */
+    private TileCanvasView mBackdrop;
+
+    /** Scroll position to apply once a new container has been laid out. */
+    private boolean mHasPendingScroll;
+    private int mPendingScrollX;
+    private int mPendingScrollY;
     private static final String TAG = TiledScrollViewWorker.class.getSimpleName();
     //    private float mDensity;
     private Handler mHandler = new Handler() {
         @Override
         public void handleMessage(final Message msg) {
             switch (msg.what) {
+                case LOAD_EXPOSED_TILES:
+                    loadExposedTiles();
+                    break;
                 case UPDATE_TILES:
-                    try {
-                        fillTiles();
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-//                    mHandler.sendMessageDelayed(Message.obtain(mHandler, CLEANUP_OLD_TILES), 1000);
+                    fillTiles();
+                    break;
+                case CLEANUP_OLD_TILES:
+                    cleanupOldTiles();
                     break;
-//                case CLEANUP_OLD_TILES:
-//                    cleanupOldTiles();
-//                    break;
             }
         }
     };
 
-    private Map<Tile, SoftReference<ImageView>> tiles = new ConcurrentHashMap<Tile, SoftReference<ImageView>>();
+    /** Tile views currently attached to the container, by {@link Tile#key(int, int, int)}. */
+    private final TileMap<TileView> tiles = new TileMap<TileView>();
+
+    /** Detached tile views waiting to be bound to another tile. */
+    private final TileViewPool mTileViewPool = new TileViewPool(getContext());
+
+    private final Rect mTmpRect = new Rect();
+
+    /** Reused for cache lookups on the UI thread. */
+    private final Tile mLookup = new Tile(0, 0, 0);
+
+    private final BitmapPool mBitmapPool = new BitmapPool(DEFAULT_BITMAP_POOL_BYTES);
+    private final TileDecoder mTileDecoder = new TileDecoder(mBitmapPool);
+
+    /** Serves every configuration set without a tile source of its own. */
+    private final TileSource mAssetSource = new AssetTileSource(getResources().getAssets());
+
+    private final TileDecodeScheduler mDecodeScheduler = new TileDecodeScheduler(
+            new TileDecodeScheduler.Decoder() {
+                @Override
+                public Bitmap decode(Tile tile) throws IOException {
+                    return loadTileBitmap(tile);
+                }
+
+                @Override
+                public Object getLane(Tile tile) {
+                    return getTileSource(getConfigurationSet(tile.level));
+                }
+            },
+            new TileDecodeScheduler.Callback() {
+                @Override
+                public void onTileDecoded(Tile tile, Bitmap bitmap, long queueNanos, long decodeNanos) {
+                    final TileMetricsListener metrics = mMetricsListener;
+                    if (metrics != null && tile.level == mCurrentLevel) {
+                        metrics.onTileLoaded(tile.level, tile.x, tile.y, queueNanos, decodeNanos);
+                    }
+
+                    showTile(tile, bitmap);
+                    maybeDropBackdrop();
+                }
+
+                @Override
+                public void onTileDropped(Tile tile, int reason) {
+                    final TileMetricsListener metrics = mMetricsListener;
+                    if (metrics != null) {
+                        metrics.onTileDropped(tile.level, tile.x, tile.y, reason);
+                    }
+                }
+
+                @Override
+                public void onTileCached(Tile tile, boolean success) {
+                    mRegionTracker.onTileCached(tile, success);
+                }
+            },
+            TileLoadEngine.DEFAULT_THREAD_COUNT);
+
+    private final TileRegionTracker mRegionTracker = new TileRegionTracker(new TileRegionTracker.Host() {
+        @Override
+        public boolean isCached(int level, int col, int row) {
+            return mTileCache.get(lookup(level, col, row)) != null;
+        }
+
+        @Override
+        public void scheduleRegion(int level, int col, int row, long priority) {
+            mDecodeScheduler.scheduleRegion(level, col, row, priority);
+        }
+
+        @Override
+        public void unpin(int level, int col, int row) {
+            mDecodeScheduler.unpin(level, col, row);
+        }
+
+        @Override
+        public void post(Runnable action) {
+            TiledScrollViewWorker.this.post(action);
+        }
+    });
+
+    /** Decoded bitmaps of all zoom levels, shared by the views above. */
+    private TileCache mTileCache = TileCache.forMemoryFraction(TileCache.DEFAULT_MEMORY_FRACTION);
+    private volatile DiskTileCache mDiskTileCache;
+
+    /** Decides which tiles to request, working on the state kept here. */
+    private final TileLoadEngine mEngine = new TileLoadEngine(new TileLoadEngine.Host() {
+        @Override
+        public boolean isShown(int level, int col, int row) {
+            return isTileLoaded(level, col, row);
+        }
+
+        @Override
+        public boolean isPending(int level, int col, int row) {
+            return mDecodeScheduler.isPending(Tile.key(level, col, row));
+        }
+
+        @Override
+        public boolean isCached(int level, int col, int row) {
+            return mTileCache.peek(lookup(level, col, row)) != null;
+        }
+
+        @Override
+        public boolean showCached(int level, int col, int row) {
+            final Bitmap cached = mTileCache.get(lookup(level, col, row));
+            if (cached == null) {
+                return false;
+            }
+
+            showTile(mLookup, cached);
+            return true;
+        }
+
+        @Override
+        public void schedule(int level, int col, int row, long priority) {
+            mDecodeScheduler.schedule(level, col, row, priority);
+
+            if (mMetricsListener != null && mFirstPaintStart == 0) {
+                mFirstPaintStart = mViewportChangedAt != 0 ? mViewportChangedAt : System.nanoTime();
+                mFirstPaintIsZoom = mViewportChangeIsZoom;
+            }
+        }
+
+        @Override
+        public void reprioritize(int level, int col, int row, long priority) {
+            mDecodeScheduler.schedule(level, col, row, priority);
+        }
+
+        @Override
+        public void schedulePrefetch(int level, int col, int row, long priority) {
+            mDecodeScheduler.schedulePrefetch(level, col, row, priority);
+        }
+
+        @Override
+        public void retain(int level, TileRange range) {
+            mDecodeScheduler.retain(level, range.left, range.top, range.right, range.bottom);
+        }
+    });
+
+    public TileCache getTileCache() {
+        return mTileCache;
+    }
+
+    public TileViewPool getTileViewPool() {
+        return mTileViewPool;
+    }
+
+    /**
+     * Sets the number of background threads decoding tiles, default is
+     * {@value TileLoadEngine#DEFAULT_THREAD_COUNT}.
+     */
+    public void setDecodeThreadCount(int threadCount) {
+        mDecodeScheduler.setThreadCount(threadCount);
+    }
+
+    /**
+     * When enabled, tiles scrolled into view are requested on every scroll frame instead of
+     * {@value TileLoadEngine#FILL_TILES_DELAY} ms after scrolling stopped.
+     */
+    public void setIncrementalLoading(boolean incremental) {
+        mIncrementalLoading = incremental;
+    }
+
+    /**
+     * Limits how many newly exposed tiles are requested per scroll frame in incremental mode,
+     * default is {@value TileLoadEngine#DEFAULT_TILES_PER_FRAME}. Remaining tiles follow in the next frames.
+     */
+    public void setTilesPerFrame(int tilesPerFrame) {
+        if (tilesPerFrame < 1) {
+            throw new IllegalArgumentException("At least one tile per frame is required, was: " + tilesPerFrame);
+        }
+
+        mTilesPerFrame = tilesPerFrame;
+    }
+
+    /**
+     * Limits how many decoded tiles are attached to the container per frame, default is
+     * {@value #DEFAULT_ATTACHES_PER_FRAME}. Tiles of a frame are added with a single layout pass,
+     * the rest follow in the next frames. Has no effect with canvas rendering, which draws tiles
+     * without views.
+     */
+    public void setAttachesPerFrame(int attachesPerFrame) {
+        if (attachesPerFrame < 1) {
+            throw new IllegalArgumentException("At least one tile per frame is required, was: " + attachesPerFrame);
+        }
+
+        mAttachesPerFrame = attachesPerFrame;
+    }
+
+    /**
+     * Sets how many rows and columns of tiles around the viewport stay attached once they were
+     * shown, default is {@value #DEFAULT_EVICTION_MARGIN}. Only visible tiles are requested, so
+     * panning back and forth within this ring does not load tiles again. Tiles beyond it are
+     * detached {@value #CLEANUP_OLD_TILES_DELAY} ms after the last tile request.
+     */
+    public void setEvictionMargin(int tiles) {
+        if (tiles < 0) {
+            throw new IllegalArgumentException("Eviction margin must not be negative, was: " + tiles);
+        }
+
+        mEvictionMargin = tiles;
+    }
+
+    /**
+     * Sets the config tiles are decoded with, default is {@link Bitmap.Config#ARGB_8888}. Opaque
+     * tiles can use {@link Bitmap.Config#RGB_565} to halve their memory use.
+     */
+    public void setPreferredBitmapConfig(Bitmap.Config config) {
+        mTileDecoder.setPreferredConfig(config);
+    }
+
+    public void setTileCache(TileCache cache) {
+        if (cache == null) {
+            throw new IllegalArgumentException("Tile cache must not be null");
+        }
+
+        mTileCache.setRecycler(null);
+        mTileCache = cache;
+
+        if (mTileCanvas != null) {
+            mTileCache.setRecycler(mBitmapPool);
+            mTileCanvas.bind(mTileCache, mCurrentLevel, getCurrentConfigurationSet());
+        }
+        if (mPlaceholders != null) {
+            mPlaceholders.bind(mTileCache, mCurrentLevel, getCurrentConfigurationSet());
+        }
+    }
+
+    /**
+     * Adds a disk tier behind the tile cache, or removes it when <code>null</code>. Tiles found
+     * there are neither read from their source nor decompressed again.
+     */
+    public void setDiskTileCache(DiskTileCache cache) {
+        mDiskTileCache = cache;
+    }
+
+    public DiskTileCache getDiskTileCache() {
+        return mDiskTileCache;
+    }
 
     public TiledScrollViewWorker(Context context, AttributeSet attrs) {
         super(context, attrs);
@@ -141,14 +587,29 @@ public class TiledScrollViewWorker extends TwoDScrollView {
         int tileWidth = a.getInt(R.styleable.asia_ivity_android_tiledscrollview_TiledScrollView_tile_width, -1);
         int tileHeight = a.getInt(R.styleable.asia_ivity_android_tiledscrollview_TiledScrollView_tile_height, -1);
         String filePattern = a.getString(R.styleable.asia_ivity_android_tiledscrollview_TiledScrollView_file_pattern);
+        mCanvasRendering = a.getBoolean(R.styleable.asia_ivity_android_tiledscrollview_TiledScrollView_canvas_rendering, false);
+        mIncrementalLoading = a.getBoolean(R.styleable.asia_ivity_android_tiledscrollview_TiledScrollView_incremental_loading, false);
 
         // TODO: Move Validation to ConfigurationSet itself.
         if (imageWidth == -1 || imageHeight == -1 || tileWidth == -1 || tileHeight == -1 || filePattern == null) {
             throw new IllegalArgumentException("Please set all attributes correctly!");
         }
 
-        mConfigurationSets.put(TiledScrollView.ZoomLevel.DEFAULT,
-                new ConfigurationSet(filePattern, tileWidth, tileHeight, imageWidth, imageHeight));
+        addConfigurationSet(0, new ConfigurationSet(filePattern, tileWidth, tileHeight, imageWidth, imageHeight));
+    }
+
+    /**
+     * Lets tiles of the next lower zoom level stand in for missing tiles of the current one.
+     */
+    private void updateFallback() {
+        final int parent = nextLevel(mCurrentLevel, -1);
+
+        if (mTileCanvas != null) {
+            mTileCanvas.setFallback(parent, getConfigurationSet(parent), null);
+        }
+        if (mPlaceholders != null) {
+            mPlaceholders.setFallback(parent, getConfigurationSet(parent), tiles);
+        }
     }
 
     private void init() {
@@ -158,36 +619,148 @@ public class TiledScrollViewWorker extends TwoDScrollView {
 
         ConfigurationSet set = getCurrentConfigurationSet();
 
-        final LayoutParams lp = new LayoutParams(set.getImageWidth(), set.getImageHeight());
+        addView(mContainer, new LayoutParams(set.getImageWidth(), set.getImageHeight()));
+        resizeContainer(set);
 
-        // Required?
-        mContainer.setMinimumWidth(set.getImageWidth());
-        mContainer.setMinimumHeight(set.getImageHeight());
-        mContainer.setLayoutParams(lp);
+        mContainer.setBackgroundColor(android.R.color.white);
 
-        addView(mContainer, lp);
+        if (mCanvasRendering) {
+            // Only the cache references tile bitmaps when drawing on a canvas, so evicted ones
+            // can be decoded into again once no frame draws them anymore, see onPreDraw().
+            mTileCache.setRecycler(mBitmapPool);
 
-        mContainer.setBackgroundColor(android.R.color.white);
+            mTileCanvas = new TileCanvasView(getContext());
+            mTileCanvas.bind(mTileCache, mCurrentLevel, set);
+            mContainer.addView(mTileCanvas, new FrameLayout.LayoutParams(
+                    LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
+        } else {
+            // Drawn underneath the tile views, so it only shows where a view is missing.
+            mPlaceholders = new TileCanvasView(getContext());
+            mPlaceholders.bind(mTileCache, mCurrentLevel, set);
+            mContainer.addView(mPlaceholders, new FrameLayout.LayoutParams(
+                    LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
+        }
+
+        updateFallback();
+
+        if (mMarkerIcon == null) {
+            mMarkerIcon = BitmapFactory.decodeResource(getResources(), R.drawable.ic_maps_indicator_current_position);
+        }
+        mMarkerOverlay = new MarkerOverlayView(getContext(), mMarkerIndex, mMarkerIcon);
+        mMarkerOverlay.setOnMarkerClickListener(mOnMarkerOnClickListener, mOnMarkerClickListener);
+        mContainer.addView(mMarkerOverlay, new FrameLayout.LayoutParams(
+                LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
 //
 //        mDensity = getContext().getResources().getDisplayMetrics().density;
     }
 
+    /** Sizes the container to the image of the given configuration set. */
+    private void resizeContainer(ConfigurationSet set) {
+        final LayoutParams lp = (LayoutParams) mContainer.getLayoutParams();
+        lp.width = set.getImageWidth();
+        lp.height = set.getImageHeight();
+
+        // Required?
+        mContainer.setMinimumWidth(set.getImageWidth());
+        mContainer.setMinimumHeight(set.getImageHeight());
+        mContainer.setLayoutParams(lp);
+    }
+
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
         super.onSizeChanged(w, h, oldw, oldh);
 
-        try {
+        updateCanvasViewports();
+        fillTiles();
+    }
+
+    /** Tells the views drawing tiles on a canvas which part of the container is on screen. */
+    private void updateCanvasViewports() {
+        setCanvasViewports(getScrollX(), getScrollY());
+    }
+
+    private void setCanvasViewports(int left, int top) {
+        final int right = left + getWidth();
+        final int bottom = top + getHeight();
+
+        if (mTileCanvas != null) {
+            mTileCanvas.setViewport(left, top, right, bottom);
+        }
+        if (mPlaceholders != null) {
+            mPlaceholders.setViewport(left, top, right, bottom);
+        }
+        if (mBackdrop != null) {
+            mBackdrop.setViewport(left, top, right, bottom);
+        }
+    }
+
+    @Override
+    protected void onLayout(boolean changed, int l, int t, int r, int b) {
+        super.onLayout(changed, l, t, r, b);
+
+        if (mHasPendingScroll) {
+            mHasPendingScroll = false;
+            scrollTo(mPendingScrollX, mPendingScrollY);
+            updateCanvasViewports();
             fillTiles();
-        } catch (IOException e) {
-            e.printStackTrace();
         }
     }
 
+    /** Redraws the canvas views without the bitmaps that were retired, so they can be reused. */
+    private final ViewTreeObserver.OnPreDrawListener mRetireBitmaps = new ViewTreeObserver.OnPreDrawListener() {
+        @Override
+        public boolean onPreDraw() {
+            if (mBitmapPool.onFrameStarting()) {
+                if (mTileCanvas != null) {
+                    mTileCanvas.invalidate();
+                }
+                if (mPlaceholders != null) {
+                    mPlaceholders.invalidate();
+                }
+                if (mBackdrop != null) {
+                    mBackdrop.invalidate();
+                }
+            }
+            return true;
+        }
+    };
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+
+        getViewTreeObserver().addOnPreDrawListener(mRetireBitmaps);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+
+        getViewTreeObserver().removeOnPreDrawListener(mRetireBitmaps);
+
+        mHandler.removeMessages(CLEANUP_OLD_TILES);
+        clearAttachQueue();
+        mRegionTracker.abandonAll();
+        mDecodeScheduler.shutdown();
+        mTileDecoder.release();
+    }
 
     @Override
     protected void onScrollChanged(int l, int t, int oldl, int oldt) {
         super.onScrollChanged(l, t, oldl, oldt);
 
+        updateCanvasViewports();
+
+        if (mMetricsListener != null) {
+            mViewportChangedAt = System.nanoTime();
+            mViewportChangeIsZoom = false;
+        }
+
+        if (mIncrementalLoading) {
+            loadExposedTiles();
+            return;
+        }
+
         Message msg = Message.obtain();
         msg.what = UPDATE_TILES;
 
@@ -195,181 +768,422 @@ public class TiledScrollViewWorker extends TwoDScrollView {
             mHandler.removeMessages(UPDATE_TILES);
         }
 
-        mHandler.sendMessageDelayed(msg, FILL_TILES_DELAY);
+        mHandler.sendMessageDelayed(msg, TileLoadEngine.FILL_TILES_DELAY);
+    }
+
+    private void fillTiles() {
+        if (!isFlinging()) {
+            mDecodeScheduler.cancelPrefetch();
+        }
+
+        mEngine.fill(getCurrentConfigurationSet(), mCurrentLevel, getScrollX(), getScrollY(),
+                getMeasuredWidth(), getMeasuredHeight());
+
+        onTilesRequested();
+    }
+
+    /** Updates everything that depends on the requested tiles. */
+    private void onTilesRequested() {
+        attachMarkers();
+        maybeDropBackdrop();
+        reportCacheStats();
+
+        if (mPlaceholders != null) {
+            mPlaceholders.invalidate();
+        }
+
+        mHandler.removeMessages(CLEANUP_OLD_TILES);
+        if (mTileCanvas == null) {
+            mHandler.sendEmptyMessageDelayed(CLEANUP_OLD_TILES, CLEANUP_OLD_TILES_DELAY);
+        }
     }
 
-    private void fillTiles() throws IOException {
-        Rect visible = new Rect();
-        mContainer.getDrawingRect(visible);
+    private void reportCacheStats() {
+        final TileMetricsListener metrics = mMetricsListener;
+        if (metrics != null) {
+            metrics.onCacheStats(mTileCache, mDiskTileCache);
+        }
+    }
 
-        for (ImageView iv : mMarkerViews) {
-            mContainer.removeView(iv);
+    /**
+     * Requests only the tiles that became visible since the last call, at most
+     * {@link #mTilesPerFrame} of them. Whatever is left over is picked up with the next message,
+     * so the UI thread never spends a whole frame on tile bookkeeping.
+     */
+    private void loadExposedTiles() {
+        mHandler.removeMessages(LOAD_EXPOSED_TILES);
+
+        final int result = mEngine.loadExposed(getCurrentConfigurationSet(), mCurrentLevel,
+                getScrollX(), getScrollY(), getMeasuredWidth(), getMeasuredHeight(), mTilesPerFrame);
+
+        if (result == TileLoadEngine.INCOMPLETE) {
+            mHandler.sendEmptyMessage(LOAD_EXPOSED_TILES);
+        } else if (result == TileLoadEngine.COMPLETE) {
+            onTilesRequested();
         }
+    }
 
-//        for (int i = 0; i < mContainer.getChildCount(); i++) {
-//            View x = mContainer.getChildAt(i);
-//            if (x.getTag() instanceof Marker) {
-//                mContainer.removeView(x);
-//                i--;
-//            }
-//        }
+    /**
+     * Loads all tiles of the given region into the tile cache, e.g. to have them ready before
+     * scrolling there. They are requested behind the visible tiles, but are not dropped when the
+     * viewport changes. Visible tiles among them are shown as usual.
+     * <p/>
+     * The request completes once every tile was decoded into the cache, or failed. Tiles are not
+     * held there for it: a region larger than the tile cache pushes its own first tiles out
+     * again, and any tile may be evicted before the listener hears about it.
+     *
+     * @param region   in pixels of the given zoom level
+     * @param level    a configured zoom level, not necessarily the current one
+     * @param listener notified on the UI thread, may be <code>null</code>
+     * @return a handle to follow or cancel the request
+     */
+    public TileRegionRequest requestRegion(Rect region, int level, TileRegionRequest.Listener listener) {
+        final ConfigurationSet set = getConfigurationSet(level);
+        if (set == null) {
+            throw new IllegalArgumentException("No configuration set for zoom level " + level);
+        }
 
-        final int left = visible.left + getScrollX();
-        final int top = visible.top + getScrollY();
+        final TileRange range = new TileRange();
+        if (region.isEmpty()) {
+            range.right = -1;
+            range.bottom = -1;
+        } else {
+            range.left = set.getColumnAt(region.left);
+            range.top = set.getRowAt(region.top);
+            range.right = set.getColumnAt(region.right - 1);
+            range.bottom = set.getRowAt(region.bottom - 1);
+        }
 
-        final ConfigurationSet set = getCurrentConfigurationSet();
+        return mRegionTracker.request(level, range, listener);
+    }
+
+    /** @return {@link #mLookup} pointed at the given tile. Only valid until the next call. */
+    private Tile lookup(int level, int col, int row) {
+        mLookup.level = level;
+        mLookup.x = col;
+        mLookup.y = row;
+        return mLookup;
+    }
 
-        // Update the logic here. Sometimes, we don't need to add 1 tile to the right and bottom,
-        // as it might be already exact. In that case, it's loading tiles that will be cleaned up
-        // immediately in #cleanupTiles().
-        final int width = (int) (getMeasuredWidth()) + getScrollX() + set.getTileWidth();
-        final int height = (int) (getMeasuredHeight()) + getScrollY() + set.getTileHeight();
+    @Override
+    protected void onFling(int startX, int startY, int finalX, int finalY) {
+        super.onFling(startX, startY, finalX, finalY);
 
-//        Log.d(TAG, "Top    : " + top);
-//        Log.d(TAG, "Left   : " + left);
-//        Log.d(TAG, "Width  : " + width);
-//        Log.d(TAG, "Height : " + height);
-//
-        new AsyncTask<Void, ImageView, Void>() {
-            @Override
-            protected Void doInBackground(Void... params) {
-                for (int y = top; y < height; ) {
-                    final int tileY = new Double(Math.ceil(y / set.getTileHeight())).intValue();
-                    for (int x = left; x < width; ) {
-                        final int tileX = new Double(Math.ceil(x / set.getTileWidth())).intValue();
-
-                        final Tile tile = new Tile(tileX, tileY);
-
-                        if (!tiles.containsKey(tile) || tiles.get(tile).get() == null) {
-                            try {
-                                publishProgress(getNewTile(tile));
-                            } catch (IOException e) {
-                                // Do nothing.
-                            }
-                        } else {
-                        }
-
-                        x = x + set.getTileWidth();
-                    }
-                    y = y + set.getTileHeight();
-                }
+        prefetchFlingPath(startX, startY, finalX, finalY);
+    }
 
-                return null;
-            }
+    /**
+     * Requests the tiles the viewport will pass over during a fling, as many as
+     * {@link TileLoadEngine#prefetchBudget(ConfigurationSet, int)} allows.
+     */
+    private void prefetchFlingPath(int startX, int startY, int finalX, int finalY) {
+        mDecodeScheduler.cancelPrefetch();
 
-            @Override
-            protected void onProgressUpdate(ImageView... ivs) {
-                for (ImageView iv : ivs) {
-                    if (iv == null) {
-                        continue;
-                    }
+        final ConfigurationSet set = getCurrentConfigurationSet();
+        final int budget = TileLoadEngine.prefetchBudget(set, mTileCache.maxSize());
 
-                    final Tile tile = (Tile) iv.getTag();
+        mEngine.prefetchFlingPath(set, mCurrentLevel, startX, startY, finalX, finalY,
+                getWidth(), getHeight(), budget);
+    }
 
-                    iv.setId(new Random().nextInt());
-                    FrameLayout.LayoutParams lp2 = new FrameLayout.LayoutParams(
-                            LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
+    /** @return the size of the current zoom level relative to level 0. */
+    private float getLevelScale() {
+        return (float) getCurrentConfigurationSet().getImageWidth() / mLevels[0].getImageWidth();
+    }
 
-                    lp2.leftMargin = tile.x * set.getTileWidth();
-                    lp2.topMargin = tile.y * set.getTileHeight();
-                    lp2.gravity = Gravity.TOP | Gravity.LEFT;
-                    iv.setLayoutParams(lp2);
+    /**
+     * Tells the marker overlay which part of the image is on screen. Markers up to half a view
+     * beyond it are collected as well, so scrolling a little does not reveal missing markers.
+     */
+    private void attachMarkers() {
+        if (mMarkerOverlay == null) {
+            return;
+        }
 
-                    mContainer.addView(iv, lp2);
+        final int marginX = getWidth() / 2;
+        final int marginY = getHeight() / 2;
+        mTmpRect.set(getScrollX() - marginX, getScrollY() - marginY,
+                getScrollX() + getWidth() + marginX, getScrollY() + getHeight() + marginY);
 
-                    // Not yet functional.
-                    // Log.d(TAG, "Animating: " + tile);
-                    // iv.startAnimation(mFadeInAnimation);
+        mMarkerOverlay.bind(mCurrentLevel, getLevelScale(), mMarkerClustering);
+        mMarkerOverlay.setViewport(mTmpRect);
+    }
 
-                    tiles.put(tile, new SoftReference<ImageView>(iv));
-                }
+    /**
+     * Makes a decoded tile visible. Must be called on the UI thread. The tile is copied where it
+     * needs to be kept, so a reused one can be passed.
+     */
+    private void showTile(Tile tile, Bitmap bitmap) {
+        // The zoom level may have changed while this tile was decoded.
+        if (tile.level != mCurrentLevel) {
+            if (mMetricsListener != null) {
+                mMetricsListener.onTileDropped(tile.level, tile.x, tile.y, TileMetricsListener.DROPPED_STALE);
             }
+            return;
+        }
+        if (tiles.containsKey(tile.key())) {
+            return;
+        }
 
-            @Override
-            protected void onPostExecute(Void aVoid) {
-                if (mMarkerViews.isEmpty()) {
-                    Bitmap b = BitmapFactory.decodeResource(getContext().getResources(), R.drawable.ic_maps_indicator_current_position);
-                    for (Marker m : mMarkers) {
-                        Log.d(TAG, "Adding: " + m);
-                        FrameLayout.LayoutParams lp = new FrameLayout.LayoutParams(LayoutParams.WRAP_CONTENT, LayoutParams.WRAP_CONTENT);
-                        lp.leftMargin = m.getX() - (b.getWidth() / 2);
-                        lp.topMargin = m.getY() - (b.getHeight() / 2);
-                        lp.gravity = Gravity.TOP | Gravity.LEFT;
-
-                        ImageView iv = new ImageView(getContext());
-                        iv.setTag(m);
-                        iv.setImageResource(R.drawable.ic_maps_indicator_current_position);
-                        iv.setLayoutParams(lp);
-
-                        if (mOnMarkerOnClickListener != null) {
-                            iv.setOnClickListener(mOnMarkerOnClickListener);
-                        }
-
-                        mMarkerViews.add(iv);
-                    }
-                }
-                for (ImageView iv : mMarkerViews) {
-                    mContainer.addView(iv, iv.getLayoutParams());
-                }
+        if (mTileCanvas != null) {
+            reportFirstPaint();
+            mTileCanvas.invalidateTile(tile);
+            return;
+        }
+
+        // Attached with the next frame, together with every other tile decoded until then.
+        if (mAttachBitmaps.put(tile.key(), bitmap) == null) {
+            mAttachQueue.add(copyTile(tile));
+        }
+        if (!mAttachScheduled) {
+            mAttachScheduled = true;
+            ZoomingFrameLayout.postNextFrame(this, mAttachFrame);
+        }
+
+        // Not yet functional.
+        // Log.d(TAG, "Animating: " + tile);
+        // iv.startAnimation(mFadeInAnimation);
+    }
+
+    private void reportFirstPaint() {
+        if (mFirstPaintStart != 0 && mMetricsListener != null) {
+            mMetricsListener.onFirstPaint(System.nanoTime() - mFirstPaintStart, mFirstPaintIsZoom);
+            mFirstPaintStart = 0;
+        }
+    }
+
+    /**
+     * Attaches up to {@link #mAttachesPerFrame} queued tiles, oldest first, with one layout pass
+     * for all of them. Schedules itself again for the next frame while tiles are left.
+     */
+    private void attachQueuedTiles() {
+        final int count = Math.min(mAttachesPerFrame, mAttachQueue.size());
+        if (count == 0) {
+            return;
+        }
+
+        final ConfigurationSet set = getCurrentConfigurationSet();
+        for (int i = 0; i < count; i++) {
+            final Tile tile = mAttachQueue.get(i);
+            final Bitmap bitmap = mAttachBitmaps.remove(tile.key());
+            if (bitmap != null && !tiles.containsKey(tile.key())) {
+                attachTile(tile, bitmap, set);
             }
-        }.execute((Void[]) null);
+        }
+        // Shifts the remaining tiles to the front, without allocating a sublist.
+        final int size = mAttachQueue.size();
+        for (int i = 0; i < count; i++) {
+            mSpareTiles.add(mAttachQueue.get(i));
+        }
+        for (int i = count; i < size; i++) {
+            mAttachQueue.set(i - count, mAttachQueue.get(i));
+        }
+        for (int i = size - 1; i >= size - count; i--) {
+            mAttachQueue.remove(i);
+        }
+
+        mContainer.requestLayout();
+        mContainer.invalidate();
+        reportFirstPaint();
+
+        if (!mAttachQueue.isEmpty()) {
+            mAttachScheduled = true;
+            ZoomingFrameLayout.postNextFrame(this, mAttachFrame);
+        } else {
+            maybeDropBackdrop();
+        }
     }
 
-    private ImageView getNewTile(Tile tile) throws IOException {
-        ImageView iv = new ImageView(getContext());
+    /** Drops the tiles waiting to be attached, e.g. because their zoom level is gone. */
+    private void clearAttachQueue() {
+        removeCallbacks(mAttachFrame);
+        mAttachScheduled = false;
+        mSpareTiles.addAll(mAttachQueue);
+        mAttachQueue.clear();
+        mAttachBitmaps.clear();
+    }
 
-        ConfigurationSet set = getCurrentConfigurationSet();
+    /** @return a tile of {@link #mSpareTiles}, or a new one, set to the given one's coordinates. */
+    private Tile copyTile(Tile tile) {
+        final Tile copy = mSpareTiles.isEmpty()
+                ? new Tile(0, 0, 0) : mSpareTiles.remove(mSpareTiles.size() - 1);
+        copy.level = tile.level;
+        copy.x = tile.x;
+        copy.y = tile.y;
+        return copy;
+    }
+
+    /**
+     * Removes the scaled tiles of the previous zoom level once every requested tile of the
+     * current one is on screen.
+     */
+    private void maybeDropBackdrop() {
+        if (mBackdrop == null || mDecodeScheduler.hasPending() || mHandler.hasMessages(LOAD_EXPOSED_TILES)
+                || !mAttachQueue.isEmpty()) {
+            return;
+        }
+
+        mContainer.removeView(mBackdrop);
+        mBackdrop = null;
+    }
+
+    /**
+     * @return whether the given tile is already on screen, or will be drawn as soon as its area
+     *         is visible.
+     */
+    private boolean isTileLoaded(int level, int col, int row) {
+        if (mTileCanvas != null) {
+            return mTileCache.peek(lookup(level, col, row)) != null;
+        }
+
+        final long key = Tile.key(level, col, row);
+        return tiles.containsKey(key) || mAttachBitmaps.containsKey(key);
+    }
+
+    /**
+     * Binds a pooled view to the given tile and adds it to the container, without requesting a
+     * layout. Must be called on the UI thread.
+     */
+    private void attachTile(Tile tile, Bitmap bitmap, ConfigurationSet set) {
+        final TileView view = mTileViewPool.acquire(set.getTileWidth(), set.getTileHeight());
+
+        final FrameLayout.LayoutParams lp = (FrameLayout.LayoutParams) view.getLayoutParams();
+        lp.leftMargin = tile.x * set.getTileWidth();
+        lp.topMargin = tile.y * set.getTileHeight();
+        lp.width = set.getTileWidthAt(tile.x);
+        lp.height = set.getTileHeightAt(tile.y);
+
+        view.setBitmap(bitmap);
+        view.setTile(tile);
+
+        // Below the marker overlay, which is always the last child.
+        mContainer.addViewWithoutLayout(view, mContainer.getChildCount() - 1, lp);
+        tiles.put(tile.key(), view);
+    }
+
+    /**
+     * Returns the bitmap for the given tile, decoding it into the cache if necessary. Safe to
+     * call from a background thread.
+     */
+    private Bitmap loadTileBitmap(Tile tile) throws IOException {
+        ConfigurationSet set = getConfigurationSet(tile.level);
+
+        Bitmap bm = mTileCache.get(tile);
+        if (bm != null) {
+            return bm;
+        }
+
+        final TileSource source = getTileSource(set);
+        final DiskTileCache diskCache = mDiskTileCache;
+        final String key = diskCache != null ? DiskTileCache.keyFor(source, set, tile) : null;
+
+        if (diskCache != null) {
+            bm = diskCache.get(key, mBitmapPool);
+        }
 
-        InputStream is;
-        String path = set.getFilePattern().replace("%col%", new Integer(tile.y).toString())
-                .replace("%row%", new Integer(tile.x).toString());
-        try {
-            is = getResources().getAssets().open(path);
-            Bitmap bm = BitmapFactory.decodeStream(is);
-            iv.setImageBitmap(bm);
-            iv.setMinimumWidth(bm.getWidth());
-            iv.setMinimumHeight(bm.getHeight());
-            iv.setMaxWidth(bm.getWidth());
-            iv.setMaxHeight(bm.getHeight());
-            is.close();
-        } catch (IOException e) {
-            throw new IOException("Cannot open asset at:" + path);
+        if (bm == null) {
+            bm = mTileDecoder.decode(source, set, tile);
+            if (diskCache != null) {
+                diskCache.put(key, bm);
+            }
         }
 
-        iv.setTag(tile);
+        mTileCache.put(tile, bm);
 
-        return iv;
+        return bm;
     }
 
+    /**
+     * Detaches the tile views beyond the eviction margin around the viewport and returns them to
+     * the pool. Their bitmaps stay in the tile cache. Runs by itself once scrolling has settled.
+     */
     public void cleanupOldTiles() {
-        Log.d(TAG, "Cleanup old tiles");
-
-        Rect actualRect = new Rect(
-                getScrollX(), getScrollY(),
-                getWidth() + getScrollX(),
-                getHeight() + getScrollY()
-        );
-
-        for (Tile tile : tiles.keySet()) {
-            final ImageView v = tiles.get(tile).get();
-            Rect r = new Rect();
-            v.getHitRect(r);
-
-            if (!Rect.intersects(actualRect, r)) {
-                mContainer.removeView(v);
-                tiles.remove(tile);
+        mHandler.removeMessages(CLEANUP_OLD_TILES);
+
+        // Canvas rendering draws straight from the cache, which evicts on its own.
+        if (mTileCanvas != null || tiles.isEmpty()) {
+            return;
+        }
+
+        final TileRange keep = mKeepRange;
+        TileLoadEngine.computeTileRange(getCurrentConfigurationSet(), getScrollX(), getScrollY(),
+                getWidth(), getHeight(), keep);
+        keep.left -= mEvictionMargin;
+        keep.top -= mEvictionMargin;
+        keep.right += mEvictionMargin;
+        keep.bottom += mEvictionMargin;
+
+        int evicted = 0;
+        long evictedBytes = 0;
+
+        // Removing an entry leaves all other slots in place, so the walk can go on.
+        for (int i = 0, n = tiles.slotCount(); i < n; i++) {
+            final long key = tiles.keyAt(i);
+            if (key < 0 || keep.contains(Tile.xOf(key), Tile.yOf(key))) {
+                continue;
+            }
+
+            final TileView v = tiles.removeAt(i);
+            if (v == null) {
+                continue;
+            }
+
+            final Bitmap bitmap = v.getBitmap();
+            if (bitmap != null) {
+                evictedBytes += TileCache.byteCount(bitmap);
             }
+
+            mContainer.removeView(v);
+            recycleTileView(v);
+            evicted++;
+        }
+
+        if (evicted > 0 && mMetricsListener != null) {
+            mMetricsListener.onTilesEvicted(evicted, evictedBytes);
+        }
+    }
+
+    /**
+     * Hands a view that has been removed from the container back to the pool. Its bitmap is
+     * retired into the bitmap pool if the tile cache has evicted it meanwhile: nothing else
+     * references it then, as each tile has at most one view and evicted bitmaps never return to
+     * the cache. Bitmaps still cached are left to the garbage collector once the cache evicts
+     * them, as it cannot tell whether a view still shows them.
+     */
+    private void recycleTileView(TileView v) {
+        final Bitmap bitmap = v.getBitmap();
+        final Tile tile = v.getTile();
+        mTileViewPool.release(v);
+
+        if (bitmap != null && mTileCache.peek(tile) != bitmap) {
+            mBitmapPool.retire(bitmap);
         }
     }
 
     private boolean inZoomMode = false;
     private boolean ignoreLastFinger = false;
     private float mOrigSeparation;
-    private static final float ZOOMJUMP = 75f;
+
+    /**
+     * Whether a pinch is in progress, its scale and the image point between the fingers when it
+     * started, in the coordinates of the current level.
+     */
+    private boolean mPinching = false;
+    private float mPinchScale = 1f;
+    private float mPinchFocusX;
+    private float mPinchFocusY;
+
+    /** Where the pinch started, in view coordinates. */
+    private float mPinchStartX;
+    private float mPinchStartY;
 
     @Override
     public boolean onTouchEvent(MotionEvent e) {
         int action = e.getAction() & MotionEvent.ACTION_MASK;
+        if (action == MotionEvent.ACTION_DOWN) {
+            // Touching the screen stops a fling, so its landing area is no longer of interest.
+            mDecodeScheduler.cancelPrefetch();
+        }
         if (e.getPointerCount() == 2) {
             inZoomMode = true;
         } else {
@@ -378,34 +1192,37 @@ public class TiledScrollViewWorker extends TwoDScrollView {
         if (inZoomMode) {
             switch (action) {
                 case MotionEvent.ACTION_POINTER_DOWN:
-                    // We may be starting a new pinch so get ready
+                    // We may be starting a new pinch so get ready. A zoom animation still
+                    // running is left to finish first.
+                    if (mContainer.isAnimatingZoom()) {
+                        break;
+                    }
                     mOrigSeparation = calculateSeparation(e);
+                    mPinchStartX = (e.getX(0) + e.getX(1)) / 2;
+                    mPinchStartY = (e.getY(0) + e.getY(1)) / 2;
+                    mPinchFocusX = getScrollX() + mPinchStartX;
+                    mPinchFocusY = getScrollY() + mPinchStartY;
+                    mPinchScale = 1f;
+                    mPinching = true;
+                    mContainer.beginZoomGesture();
                     break;
                 case MotionEvent.ACTION_POINTER_UP:
+                case MotionEvent.ACTION_CANCEL:
                     // We're ending a pinch so prepare to
                     // ignore the last finger while it's the
                     // only one still down.
-                    ignoreLastFinger = true;
+                    ignoreLastFinger = action == MotionEvent.ACTION_POINTER_UP;
+                    endPinch();
                     break;
                 case MotionEvent.ACTION_MOVE:
-                    // We're in a pinch so decide if we need to change
-                    // the zoom level.
-                    float newSeparation = calculateSeparation(e);
-                    TiledScrollView.ZoomLevel next = mCurrentZoomLevel;
-                    if (newSeparation - mOrigSeparation > ZOOMJUMP) {
-                        Log.d(TAG, "Zoom In!");
-
-                        next = mCurrentZoomLevel.upLevel();
-                        mOrigSeparation = newSeparation;
-                    } else if (mOrigSeparation - newSeparation > ZOOMJUMP) {
-                        Log.d(TAG, "Zoom Out!");
-
-                        next = mCurrentZoomLevel.downLevel();
-                        mOrigSeparation = newSeparation;
+                    // The current tiles follow the fingers, the zoom level only changes once
+                    // the pinch ends.
+                    if (mPinching && mOrigSeparation > 0) {
+                        mPinchScale = clampPinchScale(calculateSeparation(e) / mOrigSeparation);
+                        mContainer.setZoom(mPinchScale, mPinchFocusX, mPinchFocusY);
+                        mContainer.setZoomTranslation((e.getX(0) + e.getX(1)) / 2 - mPinchStartX,
+                                (e.getY(0) + e.getY(1)) / 2 - mPinchStartY);
                     }
-
-                    changeZoomLevel(next);
-
                     break;
             }
             // Don't pass these events to Android because we're
@@ -424,43 +1241,199 @@ public class TiledScrollViewWorker extends TwoDScrollView {
         return super.onTouchEvent(e);
     }
 
-    private void changeZoomLevel(TiledScrollView.ZoomLevel next) {
-        if (next != mCurrentZoomLevel && mConfigurationSets.containsKey(next)) {
-            mCurrentZoomLevel = next;
-            Log.d(TAG, "new zoom level: " + mCurrentZoomLevel);
+    /**
+     * Animates to the zoom level closest to the scale the pinch ended with and swaps it in. If
+     * that is the current level, the tiles snap back.
+     */
+    private void endPinch() {
+        if (!mPinching) {
+            return;
+        }
+        mPinching = false;
+
+        final int best = findLevelForWidth(getCurrentConfigurationSet().getImageWidth() * mPinchScale);
+        mPinchScale = 1f;
 
-            tiles.clear();
+        // The animation takes over the gesture's hardware layer and releases it when done.
+        if (best != mCurrentLevel) {
+            animateToLevel(best, mPinchFocusX, mPinchFocusY);
+        } else {
+            snapBack();
+        }
+
+        if (!mContainer.isAnimatingZoom()) {
+            mContainer.endZoomGesture();
+        }
+    }
+
+    /** Animates the pinched tiles back to their size and turns the pinch's translation into a scroll. */
+    private void snapBack() {
+        mContainer.animateZoom(1f, mPinchFocusX, mPinchFocusY, ZoomingFrameLayout.DEFAULT_ANIMATION_DURATION,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        // Turn the remaining translation into a scroll offset.
+                        final int dx = Math.round(mContainer.getZoomTranslationX());
+                        final int dy = Math.round(mContainer.getZoomTranslationY());
+                        mContainer.resetZoom();
+                        scrollBy(-dx, -dy);
+                    }
+                });
+    }
+
+    /**
+     * Scales the current tiles up to the size of the given level with an animation, then swaps
+     * the level in. (focusX, focusY) is the image point kept in place, in the coordinates of the
+     * current level.
+     */
+    private void animateToLevel(final int next, final float focusX, final float focusY) {
+        if (next == mCurrentLevel || getConfigurationSet(next) == null || mContainer.isAnimatingZoom()) {
+            return;
+        }
+
+        final float ratio = (float) getConfigurationSet(next).getImageWidth()
+                / getCurrentConfigurationSet().getImageWidth();
+
+        mContainer.animateZoom(ratio, focusX, focusY, ZoomingFrameLayout.DEFAULT_ANIMATION_DURATION,
+                new Runnable() {
+                    @Override
+                    public void run() {
+                        // The focus point is at its original position, plus the translation.
+                        final float targetX = focusX - getScrollX() + mContainer.getZoomTranslationX();
+                        final float targetY = focusY - getScrollY() + mContainer.getZoomTranslationY();
+                        mContainer.resetZoom();
+                        changeZoomLevel(next, focusX, focusY, targetX, targetY);
+                    }
+                });
+    }
+
+    /** Limits a pinch to the sizes of the smallest and largest zoom level. */
+    private float clampPinchScale(float scale) {
+        final float width = getCurrentConfigurationSet().getImageWidth();
+
+        float min = 1f;
+        float max = 1f;
+        for (ConfigurationSet set : mLevels) {
+            if (set == null) {
+                continue;
+            }
+            min = Math.min(min, set.getImageWidth() / width);
+            max = Math.max(max, set.getImageWidth() / width);
+        }
 
-            double x = getScrollX();
-            double y = getScrollY();
-            double w = mContainer.getWidth();
-            double h = mContainer.getHeight();
+        return Math.max(min, Math.min(max, scale));
+    }
 
-            removeAllViews();
+    /**
+     * Picks the zoom level best suited to show the image at the given scale. A scale of 1 shows
+     * the lowest zoom level with one image pixel per density-independent pixel, so denser screens
+     * get more detailed levels.
+     *
+     * @return the index of the zoom level.
+     */
+    public int findLevelForScale(float scale) {
+        final ConfigurationSet base = getConfigurationSet(nextLevel(-1, 1));
+        final float density = getResources().getDisplayMetrics().density;
+
+        return findLevelForWidth(base.getImageWidth() * scale * density);
+    }
 
-            init();
+    /** @return the zoom level whose image width in pixels is closest to the given one, by ratio. */
+    private int findLevelForWidth(float imageWidth) {
+        final ConfigurationSet[] levels = mLevels;
+        int best = mCurrentLevel;
+        double bestDistance = Double.MAX_VALUE;
 
-            double newW = getCurrentConfigurationSet().getImageWidth();
-            double newH = getCurrentConfigurationSet().getImageHeight();
+        for (int level = 0; level < levels.length; level++) {
+            final ConfigurationSet set = levels[level];
+            if (set == null) {
+                continue;
+            }
 
-            Log.d(TAG, "1: " + x + ", " + y);
-            Log.d(TAG, "2: " + w + ", " + h);
-            Log.d(TAG, "3: " + newW + ", " + newH);
+            final double distance = Math.abs(Math.log(set.getImageWidth() / imageWidth));
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = level;
+            }
+        }
 
-            Log.d(TAG, "new sX: " + (int) x / w * newW);
-            Log.d(TAG, "new sY: " + (int) y / h * newH);
+        return best;
+    }
 
-            smoothScrollTo((int) (x / w * newW), (int) (y / h * newH));
+    /**
+     * Switches to another zoom level. The image point (focusX, focusY), in the coordinates of the
+     * current level, ends up at (targetX, targetY) in view coordinates. The tiles of the old level
+     * stay visible, scaled, until the new ones have loaded on top of them.
+     */
+    private void changeZoomLevel(int next, float focusX, float focusY, float targetX, float targetY) {
+        if (next != mCurrentLevel && getConfigurationSet(next) != null) {
+            final ConfigurationSet previous = getCurrentConfigurationSet();
+            final int previousLevel = mCurrentLevel;
+
+            mCurrentLevel = next;
+            Log.d(TAG, "new zoom level: " + mCurrentLevel);
+
+            if (mMetricsListener != null) {
+                mViewportChangedAt = System.nanoTime();
+                mViewportChangeIsZoom = true;
+                mFirstPaintStart = 0;
+            }
+
+            // The container and its canvas views are kept, only the tile views of the old level
+            // go back to the pool. Their bitmaps stay in the tile cache, so zooming back shows
+            // them without decoding again.
+            for (int i = 0, n = tiles.slotCount(); i < n; i++) {
+                final TileView v = tiles.valueAt(i);
+                if (v != null) {
+                    mContainer.removeViewInLayout(v);
+                    recycleTileView(v);
+                }
+            }
+            tiles.clear();
+            clearAttachQueue();
 
-            if (onZoomLevelChangedListener != null) {
-                onZoomLevelChangedListener.onZoomLevelChanged(mCurrentZoomLevel);
+            if (mBackdrop != null) {
+                mContainer.removeViewInLayout(mBackdrop);
+                mBackdrop = null;
             }
 
-            try {
-                fillTiles();
-            } catch (IOException e1) {
-                Log.e(TAG, "Problem loading new tiles.", e1);
+            final ConfigurationSet set = getCurrentConfigurationSet();
+            final float ratio = (float) set.getImageWidth() / previous.getImageWidth();
+
+            resizeContainer(set);
+            if (mTileCanvas != null) {
+                mTileCanvas.bind(mTileCache, mCurrentLevel, set);
+            }
+            if (mPlaceholders != null) {
+                mPlaceholders.bind(mTileCache, mCurrentLevel, set);
+            }
+            updateFallback();
+
+            mBackdrop = new TileCanvasView(getContext());
+            mBackdrop.bind(mTileCache, previousLevel, previous);
+            mBackdrop.setScale(ratio);
+            mContainer.addView(mBackdrop, 0, new FrameLayout.LayoutParams(
+                    LayoutParams.MATCH_PARENT, LayoutParams.MATCH_PARENT));
+
+            // The container has not been resized yet, scrolling has to wait for the next layout.
+            mPendingScrollX = Math.round(focusX * ratio - targetX);
+            mPendingScrollY = Math.round(focusY * ratio - targetY);
+            mHasPendingScroll = true;
+            setCanvasViewports(mPendingScrollX, mPendingScrollY);
+
+            if (mOnLevelChangedListener != null) {
+                mOnLevelChangedListener.onLevelChanged(mCurrentLevel);
             }
+            dispatchZoomLevelChanged();
+        }
+    }
+
+    /** Tells the deprecated listener, for levels that have a {@link TiledScrollView.ZoomLevel}. */
+    @SuppressWarnings("deprecation")
+    private void dispatchZoomLevelChanged() {
+        final TiledScrollView.ZoomLevel[] zoomLevels = TiledScrollView.ZoomLevel.values();
+        if (onZoomLevelChangedListener != null && mCurrentLevel < zoomLevels.length) {
+            onZoomLevelChangedListener.onZoomLevelChanged(zoomLevels[mCurrentLevel]);
         }
     }
 
@@ -470,25 +1443,41 @@ public class TiledScrollViewWorker extends TwoDScrollView {
         return FloatMath.sqrt(x * x + y * y);
     }
 
+    /**
+     * @return the closest configured level from <code>level</code> in the given direction, not
+     *         counting <code>level</code> itself, or -1 if there is none.
+     */
+    private int nextLevel(int level, int direction) {
+        final ConfigurationSet[] levels = mLevels;
+        for (int i = level + direction; i >= 0 && i < levels.length; i += direction) {
+            if (levels[i] != null) {
+                return i;
+            }
+        }
+
+        return -1;
+    }
+
     public boolean canZoomFurtherDown() {
-        return mCurrentZoomLevel.downLevel() != mCurrentZoomLevel &&
-                mConfigurationSets.containsKey(mCurrentZoomLevel.downLevel());
+        return nextLevel(mCurrentLevel, -1) != -1;
     }
 
     public void zoomDown() {
-        changeZoomLevel(mCurrentZoomLevel.downLevel());
+        animateZoomLevel(nextLevel(mCurrentLevel, -1));
     }
 
     public boolean canZoomFurtherUp() {
-        return mCurrentZoomLevel.upLevel() != mCurrentZoomLevel &&
-                mConfigurationSets.containsKey(mCurrentZoomLevel.upLevel());
+        return nextLevel(mCurrentLevel, 1) != -1;
     }
 
     public void zoomUp() {
-        changeZoomLevel(mCurrentZoomLevel.upLevel());
+        animateZoomLevel(nextLevel(mCurrentLevel, 1));
     }
 
-    public class Marker {
+    /**
+     * A point of interest on the image, in pixels of zoom level 0.
+     */
+    public static class Marker {
         private int x;
         private int y;
 
@@ -566,9 +566,29 @@ public class TwoDScrollView extends FrameLayout {
     
             awakenScrollBars(mScroller.getDuration());
             invalidate();
+
+            onFling(getScrollX(), getScrollY(), mScroller.getFinalX(), mScroller.getFinalY());
         }
     }
 
+    /**
+     * Called after a fling has been started.
+     *
+     * @param startX scroll position on the X axis where the fling starts
+     * @param startY scroll position on the Y axis where the fling starts
+     * @param finalX scroll position on the X axis where the fling will come to rest
+     * @param finalY scroll position on the Y axis where the fling will come to rest
+     */
+    protected void onFling(int startX, int startY, int finalX, int finalY) {
+    }
+
+    /**
+     * @return true while a fling or smooth scroll is still moving the content
+     */
+    protected boolean isFlinging() {
+        return !mScroller.isFinished();
+    }
+
     /**
      * {@inheritDoc}
      *
@@ -1,16 +1,87 @@
 package asia.ivity.android.tiledscrollview;
 
+import android.annotation.TargetApi;
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Canvas;
+import android.os.Build;
 import android.util.AttributeSet;
+import android.util.Log;
+import android.view.View;
+import android.view.ViewGroup;
+import android.view.animation.AnimationUtils;
+import android.view.animation.DecelerateInterpolator;
+import android.view.animation.Interpolator;
 import android.widget.FrameLayout;
 
 /**
- * DESCRIPTION
+ * Container of the tiles that can be scaled around a focal point and translated, without laying
+ * out its children again.
+ * <p/>
+ * From Honeycomb on, the transform is applied through the view's own scale, pivot and
+ * translation properties, and a hardware layer caches the children while a gesture or
+ * animation is in progress. Each frame then only moves a texture. On older platforms the
+ * children are transformed in {@link #dispatchDraw(Canvas)}.
+ * <p/>
+ * The layer is limited to the largest texture the renderer supports, as reported by the first
+ * hardware accelerated canvas drawn on from Ice Cream Sandwich on. Until then, and on Honeycomb,
+ * {@link #DEFAULT_MAX_LAYER_SIZE} is assumed. The layer's memory is bounded as well, by
+ * {@link #DEFAULT_MAX_LAYER_BYTES} and by {@link #LAYER_MEMORY_FRACTION} of the app's memory
+ * class. A larger container is transformed without a layer: every frame replays the recorded
+ * drawing of the children instead of moving a texture.
+ * <p/>
+ * Layout and scroll positions stay those of the untransformed container.
  *
  * @author Sebastian Roth <sebastian.roth@gmail.com>
  */
 public class ZoomingFrameLayout extends FrameLayout {
+    public static final long DEFAULT_ANIMATION_DURATION = 250;
+
+    private static final String TAG = ZoomingFrameLayout.class.getSimpleName();
+
+    /** Texture size supported by all hardware accelerated devices. */
+    static final int DEFAULT_MAX_LAYER_SIZE = 2048;
+
+    /** Upper bound of the layer's memory, a full texture of {@link #DEFAULT_MAX_LAYER_SIZE}. */
+    static final int DEFAULT_MAX_LAYER_BYTES = DEFAULT_MAX_LAYER_SIZE * DEFAULT_MAX_LAYER_SIZE * 4;
+
+    /** Share of {@link ActivityManager#getMemoryClass()} the layer may take on smaller devices. */
+    static final float LAYER_MEMORY_FRACTION = 0.125f;
+
+    /** Delay between animation steps where frame callbacks are not available. */
+    private static final int FRAME_DELAY = 10;
+
+    private float mScale = 1f;
+    private float mFocusX;
+    private float mFocusY;
+    private float mTranslationX;
+    private float mTranslationY;
+
+    private boolean mGestureInProgress;
+    private boolean mWasZoomed;
+    private int mLayerTypeBeforeGesture;
+
+    private boolean mLayerLimitKnown;
+    private int mMaxLayerWidth = DEFAULT_MAX_LAYER_SIZE;
+    private int mMaxLayerHeight = DEFAULT_MAX_LAYER_SIZE;
+    private boolean mLayerFallbackLogged;
+    private final int mMaxLayerBytes = readLayerBudget(getContext());
+
+    private final Interpolator mInterpolator = new DecelerateInterpolator();
+    private boolean mAnimating;
+    private long mAnimationStart;
+    private long mAnimationDuration;
+    private float mFromScale;
+    private float mToScale;
+    private Runnable mAnimationEndAction;
+
+    private final Runnable mAnimationStep = new Runnable() {
+        @Override
+        public void run() {
+            stepAnimation();
+        }
+    };
+
     public ZoomingFrameLayout(Context context) {
         super(context);
     }
@@ -23,14 +94,280 @@ public class ZoomingFrameLayout extends FrameLayout {
         super(context, attrs, defStyle);
     }
 
+    /**
+     * Scales the children around the given focal point, in the coordinates of this layout. The
+     * focal point stays in place, apart from the translation.
+     */
+    public void setZoom(float scale, float focusX, float focusY) {
+        if (scale == mScale && focusX == mFocusX && focusY == mFocusY) {
+            return;
+        }
+
+        mScale = scale;
+        mFocusX = focusX;
+        mFocusY = focusY;
+        applyTransform();
+    }
+
+    /**
+     * Moves the scaled children by the given offset, e.g. to follow the fingers of a pinch.
+     */
+    public void setZoomTranslation(float translationX, float translationY) {
+        if (translationX == mTranslationX && translationY == mTranslationY) {
+            return;
+        }
+
+        mTranslationX = translationX;
+        mTranslationY = translationY;
+        applyTransform();
+    }
+
+    /** Removes any scale and translation, stopping a running animation. */
+    public void resetZoom() {
+        cancelZoomAnimation();
+
+        mScale = 1f;
+        mTranslationX = 0;
+        mTranslationY = 0;
+        applyTransform();
+    }
+
+    public float getZoom() {
+        return mScale;
+    }
+
+    public float getZoomFocusX() {
+        return mFocusX;
+    }
+
+    public float getZoomFocusY() {
+        return mFocusY;
+    }
+
+    public float getZoomTranslationX() {
+        return mTranslationX;
+    }
+
+    public float getZoomTranslationY() {
+        return mTranslationY;
+    }
+
+    /** @return whether the children are currently scaled or translated. */
+    public boolean isZoomed() {
+        return mScale != 1f || mTranslationX != 0 || mTranslationY != 0;
+    }
+
+    /**
+     * Prepares for a series of transform changes: the children are cached in a hardware layer,
+     * if the view is hardware accelerated and fits into a texture and the layer budget.
+     */
+    public void beginZoomGesture() {
+        if (mGestureInProgress) {
+            return;
+        }
+        mGestureInProgress = true;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            if (getWidth() <= mMaxLayerWidth && getHeight() <= mMaxLayerHeight
+                    && (long) getWidth() * getHeight() * 4 <= mMaxLayerBytes) {
+                enableLayer();
+            } else if (!mLayerFallbackLogged) {
+                mLayerFallbackLogged = true;
+                Log.d(TAG, "Zooming without a layer, " + getWidth() + "x" + getHeight()
+                        + " exceeds the texture limit of " + mMaxLayerWidth + "x" + mMaxLayerHeight
+                        + " or the budget of " + mMaxLayerBytes + " bytes");
+            }
+        }
+    }
+
+    /** Ends what {@link #beginZoomGesture()} started. */
+    public void endZoomGesture() {
+        if (!mGestureInProgress) {
+            return;
+        }
+        mGestureInProgress = false;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            restoreLayer();
+        }
+    }
+
+    /**
+     * Animates the scale towards the given value around the given focal point. The translation
+     * is kept.
+     *
+     * @param endAction run once the animation completes, may be <code>null</code>. Not run if the
+     *                  animation is cancelled.
+     */
+    public void animateZoom(float toScale, float focusX, float focusY, long duration, Runnable endAction) {
+        cancelZoomAnimation();
+
+        mFromScale = mScale;
+        mToScale = toScale;
+        mFocusX = focusX;
+        mFocusY = focusY;
+        mAnimationStart = AnimationUtils.currentAnimationTimeMillis();
+        mAnimationDuration = Math.max(1, duration);
+        mAnimationEndAction = endAction;
+        mAnimating = true;
+
+        beginZoomGesture();
+        stepAnimation();
+    }
+
+    public boolean isAnimatingZoom() {
+        return mAnimating;
+    }
+
+    /** Stops a running animation at its current scale. */
+    public void cancelZoomAnimation() {
+        if (!mAnimating) {
+            return;
+        }
+
+        mAnimating = false;
+        mAnimationEndAction = null;
+        removeCallbacks(mAnimationStep);
+        endZoomGesture();
+    }
+
+    private void stepAnimation() {
+        if (!mAnimating) {
+            return;
+        }
+
+        final float t = Math.min(1f,
+                (float) (AnimationUtils.currentAnimationTimeMillis() - mAnimationStart) / mAnimationDuration);
+        mScale = mFromScale + (mToScale - mFromScale) * mInterpolator.getInterpolation(t);
+        applyTransform();
+
+        if (t < 1f) {
+            postNextFrame(this, mAnimationStep);
+            return;
+        }
+
+        final Runnable endAction = mAnimationEndAction;
+        mAnimating = false;
+        mAnimationEndAction = null;
+        endZoomGesture();
+
+        if (endAction != null) {
+            endAction.run();
+        }
+    }
+
+    /**
+     * Runs the given action with the next frame of the given view, or after {@link #FRAME_DELAY}
+     * ms where frame callbacks are not available.
+     */
+    static void postNextFrame(View view, Runnable action) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            postOnAnimationCompat(view, action);
+        } else {
+            view.postDelayed(action, FRAME_DELAY);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static void postOnAnimationCompat(View view, Runnable action) {
+        view.postOnAnimation(action);
+    }
+
+    /**
+     * Adds a child without requesting a layout, so adding many children costs a single layout
+     * pass. {@link #requestLayout()} must be called once all of them have been added.
+     */
+    void addViewWithoutLayout(View child, int index, ViewGroup.LayoutParams params) {
+        addViewInLayout(child, index, params, true);
+    }
+
+    private void applyTransform() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            applyViewProperties();
+        } else {
+            invalidate();
+        }
+
+        // Canvas views only draw the viewport while not zoomed, see TileCanvasView.
+        final boolean zoomed = isZoomed();
+        if (zoomed != mWasZoomed) {
+            mWasZoomed = zoomed;
+            for (int i = 0, n = getChildCount(); i < n; i++) {
+                if (getChildAt(i) instanceof TileCanvasView) {
+                    getChildAt(i).invalidate();
+                }
+            }
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void applyViewProperties() {
+        setPivotX(mFocusX);
+        setPivotY(mFocusY);
+        setScaleX(mScale);
+        setScaleY(mScale);
+        setTranslationX(mTranslationX);
+        setTranslationY(mTranslationY);
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void enableLayer() {
+        mLayerTypeBeforeGesture = getLayerType();
+        if (isHardwareAccelerated()) {
+            setLayerType(View.LAYER_TYPE_HARDWARE, null);
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private void restoreLayer() {
+        if (getLayerType() != mLayerTypeBeforeGesture) {
+            setLayerType(mLayerTypeBeforeGesture, null);
+        }
+    }
+
+    /** @return bytes a layer may take, see {@link #LAYER_MEMORY_FRACTION}. */
+    private static int readLayerBudget(Context context) {
+        final ActivityManager am = (ActivityManager) context.getSystemService(Context.ACTIVITY_SERVICE);
+        if (am == null) {
+            return DEFAULT_MAX_LAYER_BYTES;
+        }
+
+        final long budget = (long) (am.getMemoryClass() * 1024L * 1024L * LAYER_MEMORY_FRACTION);
+        return (int) Math.min(DEFAULT_MAX_LAYER_BYTES, budget);
+    }
+
+    @TargetApi(Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+    private void readLayerLimit(Canvas canvas) {
+        if (canvas.isHardwareAccelerated()) {
+            mMaxLayerWidth = canvas.getMaximumBitmapWidth();
+            mMaxLayerHeight = canvas.getMaximumBitmapHeight();
+            mLayerLimitKnown = true;
+        }
+    }
+
     @Override
-    public void onDraw(Canvas canvas) {
-        canvas.save();
-        canvas.scale(10, 10);
-        canvas.rotate(5);
+    protected void dispatchDraw(Canvas canvas) {
+        if (!mLayerLimitKnown && Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            readLayerLimit(canvas);
+        }
 
-        super.onDraw(canvas);
+        // Honeycomb and later transform the whole view instead.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB || !isZoomed()) {
+            super.dispatchDraw(canvas);
+            return;
+        }
+
+        final int saveCount = canvas.save();
+        canvas.translate(mTranslationX, mTranslationY);
+        canvas.scale(mScale, mScale, mFocusX, mFocusY);
+        super.dispatchDraw(canvas);
+        canvas.restoreToCount(saveCount);
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
 
-        canvas.restore();
+        cancelZoomAnimation();
     }
 }
@@ -12,9 +12,9 @@ public class TiledScrollViewSample extends Activity {
 
         final TiledScrollView tiledScrollView = (TiledScrollView) findViewById(R.id.tiledScrollView);
 
-        tiledScrollView.addConfigurationSet(TiledScrollView.ZoomLevel.LEVEL_1,
+        tiledScrollView.addConfigurationSet(1,
                 new ConfigurationSet("tiger800/crop_%col%_%row%.png", 100, 100, 800, 600));
-        tiledScrollView.addConfigurationSet(TiledScrollView.ZoomLevel.LEVEL_2,
+        tiledScrollView.addConfigurationSet(2,
                 new ConfigurationSet("tiger1600/crop_%col%_%row%.png", 100, 100, 1600, 1200));
     }
 }
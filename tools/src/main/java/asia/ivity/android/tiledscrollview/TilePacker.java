@@ -0,0 +1,206 @@
+package asia.ivity.android.tiledscrollview;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Packs directories of tile files into a single file read by <code>PackFileTileSource</code>, in
+ * the layout described by {@link TilePackFormat}.
+ * <p/>
+ * Plain Java, to be run at build time:
+ * <pre>
+ * java -cp tiledscrollview.tools.jar asia.ivity.android.tiledscrollview.TilePacker \
+ *     assets tiger.pack tiger800/crop_%col%_%row%.png tiger1600/crop_%col%_%row%.png
+ * </pre>
+ * Every pattern becomes one level of the pack, named after the pattern, so the existing
+ * configuration sets keep working once they are given the pack as their source. Placeholders
+ * are resolved like {@link ConfigurationSet} does: <code>%col%</code> holds the vertical and
+ * <code>%row%</code> the horizontal tile index. Tile files are copied unchanged.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+public class TilePacker {
+    private static final String COL = "%col%";
+    private static final String ROW = "%row%";
+
+    private final File mRoot;
+    private final List<LevelInput> mLevels = new ArrayList<LevelInput>();
+
+    public TilePacker(File root) {
+        mRoot = root;
+    }
+
+    /**
+     * Adds the tiles matching a file pattern, relative to the root directory. Only the file name
+     * may contain placeholders.
+     */
+    public void addLevel(String filePattern) throws IOException {
+        final int slash = filePattern.lastIndexOf('/');
+        final String dirName = slash >= 0 ? filePattern.substring(0, slash) : "";
+        final String namePattern = filePattern.substring(slash + 1);
+
+        if (dirName.contains(COL) || dirName.contains(ROW)) {
+            throw new IllegalArgumentException("Placeholders are only supported in file names: " + filePattern);
+        }
+        if (!namePattern.contains(COL) || !namePattern.contains(ROW)) {
+            throw new IllegalArgumentException("Pattern needs both " + COL + " and " + ROW + ": " + filePattern);
+        }
+
+        final File dir = new File(mRoot, dirName);
+        final String[] names = dir.list();
+        if (names == null) {
+            throw new IOException("Cannot list " + dir);
+        }
+
+        final boolean colFirst = namePattern.indexOf(COL) < namePattern.indexOf(ROW);
+        final Pattern regex = Pattern.compile(Pattern.quote(namePattern)
+                .replace(COL, "\\E(\\d+)\\Q").replace(ROW, "\\E(\\d+)\\Q"));
+
+        final LevelInput level = new LevelInput(filePattern);
+        final List<int[]> found = new ArrayList<int[]>();
+        for (String name : names) {
+            final Matcher m = regex.matcher(name);
+            if (!m.matches()) {
+                continue;
+            }
+
+            final int col = Integer.parseInt(m.group(colFirst ? 1 : 2));
+            final int row = Integer.parseInt(m.group(colFirst ? 2 : 1));
+            // Same mapping as ConfigurationSet.getTilePath(): %row% is x, %col% is y.
+            found.add(new int[]{row, col});
+            level.columns = Math.max(level.columns, row + 1);
+            level.rows = Math.max(level.rows, col + 1);
+        }
+
+        if (found.isEmpty()) {
+            throw new IOException("No tiles match " + filePattern + " in " + dir);
+        }
+
+        level.files = new File[level.columns * level.rows];
+        for (int[] xy : found) {
+            level.files[xy[1] * level.columns + xy[0]] = new File(dir, namePattern
+                    .replace(COL, Integer.toString(xy[1])).replace(ROW, Integer.toString(xy[0])));
+        }
+
+        mLevels.add(level);
+    }
+
+    /**
+     * Writes all added levels into one pack.
+     *
+     * @return the number of tiles written.
+     */
+    public int write(File out) throws IOException {
+        // The header and offset tables come first, their size is known up front.
+        long position = TilePackFormat.HEADER_BYTES;
+        final byte[][] names = new byte[mLevels.size()][];
+        for (int i = 0; i < mLevels.size(); i++) {
+            names[i] = mLevels.get(i).pattern.getBytes("UTF-8");
+            if (names[i].length > 0xffff) {
+                throw new IOException("Pattern too long: " + mLevels.get(i).pattern);
+            }
+            position += TilePackFormat.LEVEL_BYTES + names[i].length;
+        }
+
+        final int[] tablePositions = new int[mLevels.size()];
+        for (int i = 0; i < mLevels.size(); i++) {
+            tablePositions[i] = checkedInt(position);
+            position += 4L * (mLevels.get(i).files.length + 1);
+        }
+
+        final DataOutputStream data = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(out), 64 * 1024));
+        int tileCount = 0;
+        try {
+            data.writeInt(TilePackFormat.MAGIC);
+            data.writeInt(TilePackFormat.VERSION);
+            data.writeInt(mLevels.size());
+
+            for (int i = 0; i < mLevels.size(); i++) {
+                final LevelInput level = mLevels.get(i);
+                data.writeShort(names[i].length);
+                data.write(names[i]);
+                data.writeInt(level.columns);
+                data.writeInt(level.rows);
+                data.writeInt(tablePositions[i]);
+            }
+
+            for (LevelInput level : mLevels) {
+                for (File file : level.files) {
+                    data.writeInt(checkedInt(position));
+                    if (file != null) {
+                        position += file.length();
+                    }
+                }
+                data.writeInt(checkedInt(position));
+            }
+
+            final byte[] buffer = new byte[64 * 1024];
+            for (LevelInput level : mLevels) {
+                for (File file : level.files) {
+                    if (file == null) {
+                        continue;
+                    }
+
+                    final InputStream in = new FileInputStream(file);
+                    try {
+                        int read;
+                        while ((read = in.read(buffer)) != -1) {
+                            data.write(buffer, 0, read);
+                        }
+                    } finally {
+                        in.close();
+                    }
+                    tileCount++;
+                }
+            }
+        } finally {
+            data.close();
+        }
+
+        return tileCount;
+    }
+
+    private static int checkedInt(long position) throws IOException {
+        if (position > Integer.MAX_VALUE) {
+            throw new IOException("Tile pack exceeds 2 GB");
+        }
+        return (int) position;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: TilePacker <root dir> <output file> <file pattern>...");
+            System.exit(1);
+        }
+
+        final TilePacker packer = new TilePacker(new File(args[0]));
+        for (int i = 2; i < args.length; i++) {
+            packer.addLevel(args[i]);
+        }
+
+        final File out = new File(args[1]);
+        final int tiles = packer.write(out);
+        System.out.println("Packed " + tiles + " tiles into " + out + " (" + out.length() + " bytes)");
+    }
+
+    private static class LevelInput {
+        final String pattern;
+        int columns;
+        int rows;
+        File[] files;
+
+        LevelInput(String pattern) {
+            this.pattern = pattern;
+        }
+    }
+}
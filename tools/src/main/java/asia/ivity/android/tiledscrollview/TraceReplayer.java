@@ -0,0 +1,446 @@
+package asia.ivity.android.tiledscrollview;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Replays a scroll and fling trace through a {@link TileLoadEngine} on a plain JVM, against a
+ * simulated memory cache and decode threads with a fixed decode time. Reports how many tiles
+ * were decoded, how many of them more than once, and the peak memory held by tile bitmaps, so
+ * changes to the loading logic, tile size or cache budget can be compared without a device.
+ * <p/>
+ * Tiles are treated as shown once they are cached, as with canvas rendering. A trace is a text
+ * file with one event per line, times in milliseconds:
+ * <pre>
+ * &lt;time&gt; &lt;scrollX&gt; &lt;scrollY&gt;
+ * &lt;time&gt; fling &lt;finalX&gt; &lt;finalY&gt;
+ * </pre>
+ * Usage: <code>TraceReplayer &lt;image width&gt; &lt;image height&gt; &lt;tile size&gt; [trace]</code>.
+ * Without a trace, a fling across the image is replayed. Timing, budgets and priorities are the
+ * defaults of the worker, taken from {@link TileLoadEngine}.
+ *
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+public class TraceReplayer {
+    static final int DEFAULT_VIEW_WIDTH = 800;
+    static final int DEFAULT_VIEW_HEIGHT = 1280;
+    static final int DEFAULT_CACHE_BYTES = 16 * 1024 * 1024;
+    static final int DEFAULT_DECODE_MILLIS = 25;
+    static final int FRAME_MILLIS = 16;
+
+    /** A scroll position, or the start of a fling towards one. */
+    public static class Event {
+        final long time;
+        final int x;
+        final int y;
+        final boolean fling;
+
+        public Event(long time, int x, int y, boolean fling) {
+            this.time = time;
+            this.x = x;
+            this.y = y;
+            this.fling = fling;
+        }
+    }
+
+    /** Counters of one replay. */
+    public static class Result {
+        public int frames;
+        public int requested;
+        public int prefetched;
+        public int decoded;
+        public int redundantDecodes;
+        public int cancelled;
+        public int stale;
+        public int evicted;
+        public long peakBytes;
+        public long endTime;
+
+        @Override
+        public String toString() {
+            return "Result{" +
+                    "frames=" + frames +
+                    ", requested=" + requested +
+                    ", prefetched=" + prefetched +
+                    ", decoded=" + decoded +
+                    ", redundantDecodes=" + redundantDecodes +
+                    ", cancelled=" + cancelled +
+                    ", stale=" + stale +
+                    ", evicted=" + evicted +
+                    ", peakBytes=" + peakBytes +
+                    ", endTime=" + endTime +
+                    '}';
+        }
+    }
+
+    private final ConfigurationSet mSet;
+    private final int mViewWidth;
+    private final int mViewHeight;
+    private int mCacheBytes = DEFAULT_CACHE_BYTES;
+    private int mDecodeMillis = DEFAULT_DECODE_MILLIS;
+    private int mThreadCount = TileLoadEngine.DEFAULT_THREAD_COUNT;
+    private int mTilesPerFrame;
+
+    public TraceReplayer(ConfigurationSet set, int viewWidth, int viewHeight) {
+        mSet = set;
+        mViewWidth = viewWidth;
+        mViewHeight = viewHeight;
+    }
+
+    public void setCacheBytes(int cacheBytes) {
+        mCacheBytes = cacheBytes;
+    }
+
+    public void setDecodeMillis(int decodeMillis) {
+        mDecodeMillis = decodeMillis;
+    }
+
+    public void setThreadCount(int threadCount) {
+        mThreadCount = threadCount;
+    }
+
+    /**
+     * @param tilesPerFrame tiles requested per scroll event in incremental mode, or 0 to fill the
+     *                      viewport once scrolling has settled
+     */
+    public void setTilesPerFrame(int tilesPerFrame) {
+        mTilesPerFrame = tilesPerFrame;
+    }
+
+    /** Replays the given events, which must be ordered by time, until all decodes are done. */
+    public Result replay(List<Event> events) {
+        final Simulation simulation = new Simulation();
+        simulation.run(events);
+        return simulation.mResult;
+    }
+
+    private static class Task implements Comparable<Task> {
+        final long key;
+        final long sequence;
+        long priority;
+        boolean prefetch;
+        boolean cancelled;
+        long doneAt;
+
+        Task(long key, long priority, long sequence) {
+            this.key = key;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+        }
+    }
+
+    /** State of one replay, acting as the engine's host. */
+    private class Simulation implements TileLoadEngine.Host {
+        final Result mResult = new Result();
+        final TileLoadEngine mEngine = new TileLoadEngine(this);
+
+        /** Cached tiles and their bytes, in access order. */
+        final LinkedHashMap<Long, Integer> mCache = new LinkedHashMap<Long, Integer>(64, 0.75f, true);
+        long mCachedBytes;
+
+        final TileMap<Task> mPending = new TileMap<Task>();
+        final PriorityQueue<Task> mQueue = new PriorityQueue<Task>();
+        final List<Task> mRunning = new ArrayList<Task>();
+        final Set<Long> mDecodedOnce = new HashSet<Long>();
+        long mSequence;
+        long mNow;
+        int mScrollX;
+        int mScrollY;
+
+        void run(List<Event> events) {
+            long fillAt = -1;
+
+            for (Event event : events) {
+                if (fillAt >= 0 && fillAt <= event.time) {
+                    fill(fillAt);
+                    fillAt = -1;
+                }
+                advanceTo(event.time);
+                mResult.frames++;
+
+                if (event.fling) {
+                    final int budget = TileLoadEngine.prefetchBudget(mSet, mCacheBytes);
+                    cancelPrefetch();
+                    mEngine.prefetchFlingPath(mSet, 0, mScrollX, mScrollY, event.x, event.y,
+                            mViewWidth, mViewHeight, budget);
+                    continue;
+                }
+
+                mScrollX = event.x;
+                mScrollY = event.y;
+
+                if (mTilesPerFrame > 0) {
+                    while (mEngine.loadExposed(mSet, 0, mScrollX, mScrollY, mViewWidth, mViewHeight,
+                            mTilesPerFrame) == TileLoadEngine.INCOMPLETE) {
+                        // Picked up by the next message on the device, right away.
+                    }
+                } else {
+                    fillAt = event.time + TileLoadEngine.FILL_TILES_DELAY;
+                }
+            }
+
+            if (fillAt >= 0) {
+                fill(fillAt);
+            }
+            advanceTo(Long.MAX_VALUE);
+        }
+
+        /** Fills the viewport once scrolling has settled, which also ends any fling. */
+        private void fill(long time) {
+            advanceTo(time);
+            cancelPrefetch();
+            mEngine.fill(mSet, 0, mScrollX, mScrollY, mViewWidth, mViewHeight);
+        }
+
+        /** Runs the decode threads until the given time, or until they are idle. */
+        void advanceTo(long time) {
+            while (true) {
+                startQueued();
+
+                Task next = null;
+                for (int i = 0, n = mRunning.size(); i < n; i++) {
+                    final Task task = mRunning.get(i);
+                    if (next == null || task.doneAt < next.doneAt) {
+                        next = task;
+                    }
+                }
+
+                if (next == null || next.doneAt > time) {
+                    break;
+                }
+
+                mNow = next.doneAt;
+                mRunning.remove(next);
+                finish(next);
+            }
+
+            if (time != Long.MAX_VALUE) {
+                mNow = Math.max(mNow, time);
+            }
+            mResult.endTime = mNow;
+        }
+
+        private void startQueued() {
+            while (mRunning.size() < mThreadCount && !mQueue.isEmpty()) {
+                final Task task = mQueue.poll();
+                task.doneAt = mNow + mDecodeMillis;
+                mRunning.add(task);
+                updatePeak();
+            }
+        }
+
+        private void finish(Task task) {
+            if (mPending.get(task.key) == task) {
+                mPending.remove(task.key);
+            }
+
+            mResult.decoded++;
+            if (!mDecodedOnce.add(task.key)) {
+                mResult.redundantDecodes++;
+            }
+            if (task.cancelled) {
+                mResult.stale++;
+            }
+
+            // Decoded tiles are cached even when no longer needed, as on the device.
+            final int bytes = tileBytes(task.key);
+            final Integer previous = mCache.put(task.key, bytes);
+            mCachedBytes += bytes - (previous != null ? previous : 0);
+
+            for (Iterator<Map.Entry<Long, Integer>> it = mCache.entrySet().iterator();
+                 mCachedBytes > mCacheBytes && it.hasNext(); ) {
+                mCachedBytes -= it.next().getValue();
+                it.remove();
+                mResult.evicted++;
+            }
+            updatePeak();
+        }
+
+        private int tileBytes(long key) {
+            return mSet.getTileWidthAt(Tile.xOf(key)) * mSet.getTileHeightAt(Tile.yOf(key)) * 4;
+        }
+
+        /** Bitmaps in the cache plus those being decoded into. */
+        private void updatePeak() {
+            long bytes = mCachedBytes;
+            for (int i = 0, n = mRunning.size(); i < n; i++) {
+                bytes += tileBytes(mRunning.get(i).key);
+            }
+            mResult.peakBytes = Math.max(mResult.peakBytes, bytes);
+        }
+
+        private void cancelPrefetch() {
+            for (Iterator<Task> it = mQueue.iterator(); it.hasNext(); ) {
+                final Task task = it.next();
+                if (task.prefetch) {
+                    it.remove();
+                    mPending.remove(task.key);
+                }
+            }
+        }
+
+        @Override
+        public boolean isShown(int level, int col, int row) {
+            return mCache.containsKey(Tile.key(level, col, row));
+        }
+
+        @Override
+        public boolean isPending(int level, int col, int row) {
+            return mPending.containsKey(Tile.key(level, col, row));
+        }
+
+        @Override
+        public boolean isCached(int level, int col, int row) {
+            return mCache.containsKey(Tile.key(level, col, row));
+        }
+
+        @Override
+        public boolean showCached(int level, int col, int row) {
+            return mCache.get(Tile.key(level, col, row)) != null;
+        }
+
+        @Override
+        public void schedule(int level, int col, int row, long priority) {
+            final Task task = new Task(Tile.key(level, col, row), priority, mSequence++);
+            mPending.put(task.key, task);
+            mQueue.add(task);
+            mResult.requested++;
+        }
+
+        @Override
+        public void reprioritize(int level, int col, int row, long priority) {
+            final Task task = mPending.get(Tile.key(level, col, row));
+            task.prefetch = false;
+            if (task.priority != priority && mQueue.remove(task)) {
+                task.priority = priority;
+                mQueue.add(task);
+            }
+        }
+
+        @Override
+        public void schedulePrefetch(int level, int col, int row, long priority) {
+            final Task task = new Task(Tile.key(level, col, row),
+                    TileLoadEngine.PREFETCH_PRIORITY + priority, mSequence++);
+            task.prefetch = true;
+            mPending.put(task.key, task);
+            mQueue.add(task);
+            mResult.prefetched++;
+        }
+
+        @Override
+        public void retain(int level, TileRange range) {
+            for (int i = 0, n = mPending.slotCount(); i < n; i++) {
+                final Task task = mPending.valueAt(i);
+                if (task == null || task.prefetch) {
+                    continue;
+                }
+
+                if (Tile.levelOf(task.key) != level || !range.contains(Tile.xOf(task.key), Tile.yOf(task.key))) {
+                    mPending.removeAt(i);
+                    task.cancelled = true;
+                    if (mQueue.remove(task)) {
+                        mResult.cancelled++;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A fling starting at the given position, one event per frame, slowing down until it stops.
+     * Starts with the fling event, like a scroll view announcing where it will land.
+     */
+    public static List<Event> fling(ConfigurationSet set, int viewWidth, int viewHeight,
+                                    int startX, int startY, float velocityX, float velocityY) {
+        final int maxX = Math.max(0, set.getImageWidth() - viewWidth);
+        final int maxY = Math.max(0, set.getImageHeight() - viewHeight);
+
+        final List<Event> positions = new ArrayList<Event>();
+        float x = startX;
+        float y = startY;
+        long time = 0;
+
+        // Velocities in pixels per second, decaying by a constant factor every frame.
+        while (Math.abs(velocityX) + Math.abs(velocityY) > 50) {
+            time += FRAME_MILLIS;
+            x = Math.max(0, Math.min(maxX, x + velocityX * FRAME_MILLIS / 1000));
+            y = Math.max(0, Math.min(maxY, y + velocityY * FRAME_MILLIS / 1000));
+            velocityX *= 0.95f;
+            velocityY *= 0.95f;
+            positions.add(new Event(time, (int) x, (int) y, false));
+        }
+
+        final List<Event> events = new ArrayList<Event>(positions.size() + 2);
+        events.add(new Event(0, startX, startY, false));
+        events.add(new Event(0, (int) x, (int) y, true));
+        events.addAll(positions);
+        return events;
+    }
+
+    static List<Event> readTrace(String path) throws IOException {
+        final List<Event> events = new ArrayList<Event>();
+        final BufferedReader reader = new BufferedReader(new FileReader(path));
+
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+
+                final String[] fields = line.split("\\s+");
+                if (fields.length == 4 && "fling".equals(fields[1])) {
+                    events.add(new Event(Long.parseLong(fields[0]),
+                            Integer.parseInt(fields[2]), Integer.parseInt(fields[3]), true));
+                } else if (fields.length == 3) {
+                    events.add(new Event(Long.parseLong(fields[0]),
+                            Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), false));
+                } else {
+                    throw new IOException("Cannot parse trace line: " + line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        return events;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: TraceReplayer <image width> <image height> <tile size> [trace]");
+            System.exit(1);
+        }
+
+        final int tileSize = Integer.parseInt(args[2]);
+        final ConfigurationSet set = new ConfigurationSet("%col%_%row%",
+                tileSize, tileSize, Integer.parseInt(args[0]), Integer.parseInt(args[1]));
+
+        final List<Event> events = args.length > 3 ? readTrace(args[3])
+                : fling(set, DEFAULT_VIEW_WIDTH, DEFAULT_VIEW_HEIGHT, 0, 0, 6000, 8000);
+
+        final TraceReplayer replayer = new TraceReplayer(set, DEFAULT_VIEW_WIDTH, DEFAULT_VIEW_HEIGHT);
+        System.out.println("fill:        " + replayer.replay(events));
+
+        replayer.setTilesPerFrame(TileLoadEngine.DEFAULT_TILES_PER_FRAME);
+        System.out.println("incremental: " + replayer.replay(events));
+    }
+}
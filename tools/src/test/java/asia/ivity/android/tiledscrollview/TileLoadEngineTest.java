@@ -0,0 +1,399 @@
+package asia.ivity.android.tiledscrollview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+public class TileLoadEngineTest {
+    /** 10 x 10 tiles of 100 pixels. */
+    private static final ConfigurationSet SET = new ConfigurationSet("%col%_%row%", 100, 100, 1000, 1000);
+
+    /** A viewport of 250 pixels covers four columns and rows, including the extra tile. */
+    private static final int VIEW_SIZE = 250;
+
+    private FakeHost mHost;
+    private TileLoadEngine mEngine;
+
+    @Before
+    public void setUp() {
+        mHost = new FakeHost();
+        mEngine = new TileLoadEngine(mHost);
+    }
+
+    @Test
+    public void tileRangeCoversViewportPlusOneTile() {
+        final TileRange range = new TileRange();
+
+        TileLoadEngine.computeTileRange(SET, 150, 0, VIEW_SIZE, VIEW_SIZE, range);
+        assertRange(1, 0, 4, 3, range);
+
+        // Clamped at the right and bottom edge of the image.
+        TileLoadEngine.computeTileRange(SET, 900, 900, VIEW_SIZE, VIEW_SIZE, range);
+        assertRange(9, 9, 9, 9, range);
+    }
+
+    @Test
+    public void fillRequestsEveryTileOfTheViewport() {
+        mEngine.fill(SET, 0, 0, 0, VIEW_SIZE, VIEW_SIZE);
+
+        assertEquals(16, mHost.scheduled.size());
+        for (int row = 0; row <= 3; row++) {
+            for (int col = 0; col <= 3; col++) {
+                assertTrue(mHost.isPending(0, col, row));
+            }
+        }
+        assertEquals(1, mHost.retained.size());
+        assertRange(0, 0, 3, 3, mHost.retained.get(0));
+        assertEquals(0, mHost.retainedLevels.get(0).intValue());
+    }
+
+    @Test
+    public void fillRanksTilesByDistanceToTheViewportCenter() {
+        mEngine.fill(SET, 0, 0, 0, VIEW_SIZE, VIEW_SIZE);
+
+        // The viewport center is at (125, 125).
+        for (Request request : mHost.scheduled) {
+            final long dx = request.col * 100 + 50 - 125;
+            final long dy = request.row * 100 + 50 - 125;
+            assertEquals(dx * dx + dy * dy, request.priority);
+        }
+        assertEquals(Tile.key(0, 1, 1), lowestPriority(mHost.scheduled).key());
+    }
+
+    @Test
+    public void fillShowsCachedTilesAndSkipsShownAndPendingOnes() {
+        mHost.cached.add(Tile.key(0, 0, 0));
+        mHost.shown.add(Tile.key(0, 1, 0));
+        mHost.pending.add(Tile.key(0, 2, 0));
+
+        mEngine.fill(SET, 0, 0, 0, VIEW_SIZE, VIEW_SIZE);
+
+        assertTrue(mHost.shown.contains(Tile.key(0, 0, 0)));
+        assertEquals(13, mHost.scheduled.size());
+        assertFalse(contains(mHost.scheduled, 0, 0));
+        assertFalse(contains(mHost.scheduled, 1, 0));
+        assertFalse(contains(mHost.scheduled, 2, 0));
+
+        // The pending tile is ranked like a new one would be.
+        assertEquals(1, mHost.reprioritized.size());
+        assertEquals(Tile.key(0, 2, 0), mHost.reprioritized.get(0).key());
+        assertEquals(125L * 125 + 75 * 75, mHost.reprioritized.get(0).priority);
+    }
+
+    @Test
+    public void loadExposedReportsUnchangedViewport() {
+        assertEquals(TileLoadEngine.COMPLETE,
+                mEngine.loadExposed(SET, 0, 0, 0, VIEW_SIZE, VIEW_SIZE, 100));
+        mHost.clearCalls();
+
+        assertEquals(TileLoadEngine.UNCHANGED,
+                mEngine.loadExposed(SET, 0, 0, 0, VIEW_SIZE, VIEW_SIZE, 100));
+        assertEquals(0, mHost.scheduled.size());
+        assertEquals(0, mHost.retained.size());
+
+        // Scrolling within the same tiles changes nothing either.
+        assertEquals(TileLoadEngine.UNCHANGED,
+                mEngine.loadExposed(SET, 0, 20, 30, VIEW_SIZE, VIEW_SIZE, 100));
+    }
+
+    @Test
+    public void loadExposedOnlyRequestsNewlyExposedTiles() {
+        mEngine.loadExposed(SET, 0, 0, 0, VIEW_SIZE, VIEW_SIZE, 100);
+        mHost.clearCalls();
+
+        assertEquals(TileLoadEngine.COMPLETE,
+                mEngine.loadExposed(SET, 0, 100, 0, VIEW_SIZE, VIEW_SIZE, 100));
+
+        assertEquals(4, mHost.scheduled.size());
+        for (Request request : mHost.scheduled) {
+            assertEquals(4, request.col);
+        }
+        assertEquals(0, mHost.reprioritized.size());
+    }
+
+    @Test
+    public void loadExposedStopsAtBudgetAndResumes() {
+        assertEquals(TileLoadEngine.INCOMPLETE,
+                mEngine.loadExposed(SET, 0, 0, 0, VIEW_SIZE, VIEW_SIZE, 5));
+        assertEquals(5, mHost.scheduled.size());
+
+        // Tiles already on their way do not count against the budget.
+        assertEquals(TileLoadEngine.INCOMPLETE,
+                mEngine.loadExposed(SET, 0, 0, 0, VIEW_SIZE, VIEW_SIZE, 5));
+        assertEquals(10, mHost.scheduled.size());
+        assertEquals(TileLoadEngine.INCOMPLETE,
+                mEngine.loadExposed(SET, 0, 0, 0, VIEW_SIZE, VIEW_SIZE, 5));
+        assertEquals(15, mHost.scheduled.size());
+
+        assertEquals(TileLoadEngine.COMPLETE,
+                mEngine.loadExposed(SET, 0, 0, 0, VIEW_SIZE, VIEW_SIZE, 5));
+        assertEquals(16, mHost.scheduled.size());
+        assertEquals(TileLoadEngine.UNCHANGED,
+                mEngine.loadExposed(SET, 0, 0, 0, VIEW_SIZE, VIEW_SIZE, 5));
+
+        assertEquals(16, new HashSet<Long>(keys(mHost.scheduled)).size());
+    }
+
+    @Test
+    public void loadExposedCountsCachedTilesAgainstTheBudget() {
+        for (int col = 0; col <= 3; col++) {
+            mHost.cached.add(Tile.key(0, col, 0));
+        }
+
+        assertEquals(TileLoadEngine.INCOMPLETE,
+                mEngine.loadExposed(SET, 0, 0, 0, VIEW_SIZE, VIEW_SIZE, 4));
+        assertEquals(0, mHost.scheduled.size());
+        for (int col = 0; col <= 3; col++) {
+            assertTrue(mHost.shown.contains(Tile.key(0, col, 0)));
+        }
+    }
+
+    @Test
+    public void loadExposedRequestsWholeViewportOnLevelChange() {
+        mEngine.loadExposed(SET, 0, 0, 0, VIEW_SIZE, VIEW_SIZE, 100);
+        mHost.clearCalls();
+
+        assertEquals(TileLoadEngine.COMPLETE,
+                mEngine.loadExposed(SET, 1, 0, 0, VIEW_SIZE, VIEW_SIZE, 100));
+
+        assertEquals(16, mHost.scheduled.size());
+        for (Request request : mHost.scheduled) {
+            assertEquals(1, request.level);
+        }
+        assertEquals(1, mHost.retainedLevels.get(0).intValue());
+    }
+
+    @Test
+    public void retainDropsRequestsThatLeftTheViewport() {
+        mEngine.fill(SET, 0, 0, 0, VIEW_SIZE, VIEW_SIZE);
+        mEngine.fill(SET, 0, 600, 600, VIEW_SIZE, VIEW_SIZE);
+
+        assertEquals(2, mHost.retained.size());
+        assertRange(6, 6, 9, 9, mHost.retained.get(1));
+        assertFalse(mHost.isPending(0, 0, 0));
+        assertTrue(mHost.isPending(0, 6, 6));
+        assertEquals(32, mHost.scheduled.size());
+    }
+
+    @Test
+    public void retainIsCalledBeforeRequesting() {
+        mHost.pending.add(Tile.key(0, 9, 9));
+
+        mEngine.loadExposed(SET, 0, 0, 0, VIEW_SIZE, VIEW_SIZE, 1);
+
+        // The stale request was dropped before the budget was spent.
+        assertEquals(1, mHost.retained.size());
+        assertFalse(mHost.isPending(0, 9, 9));
+        assertEquals(1, mHost.scheduled.size());
+    }
+
+    @Test
+    public void prefetchStartsAtTheLandingPoint() {
+        mEngine.prefetchFlingPath(SET, 0, 0, 0, 600, 0, VIEW_SIZE, VIEW_SIZE, 100);
+
+        // The landing viewport covers columns 6 to 9 and comes first, the rest walks back.
+        final List<Request> prefetched = mHost.prefetched;
+        for (int i = 0; i < 16; i++) {
+            assertTrue("request " + i + " at column " + prefetched.get(i).col, prefetched.get(i).col >= 6);
+        }
+        for (int i = 16; i < prefetched.size(); i++) {
+            assertTrue(prefetched.get(i).col < 6);
+        }
+        for (int i = prefetched.size() - 4; i < prefetched.size(); i++) {
+            assertEquals(0, prefetched.get(i).col);
+        }
+
+        // The whole path from column 0 to 9 over rows 0 to 3, each tile once.
+        assertEquals(40, prefetched.size());
+        assertEquals(40, new HashSet<Long>(keys(prefetched)).size());
+        assertEquals(0, mHost.scheduled.size());
+        assertEquals(0, mHost.retained.size());
+    }
+
+    @Test
+    public void prefetchRanksTilesByDistanceToTheLandingPoint() {
+        mEngine.prefetchFlingPath(SET, 0, 0, 0, 600, 0, VIEW_SIZE, VIEW_SIZE, 100);
+
+        // The landing viewport's center is at (725, 125).
+        for (Request request : mHost.prefetched) {
+            final long dx = request.col * 100 + 50 - 725;
+            final long dy = request.row * 100 + 50 - 125;
+            assertEquals(dx * dx + dy * dy, request.priority);
+        }
+        assertEquals(Tile.key(0, 7, 1), lowestPriority(mHost.prefetched).key());
+    }
+
+    @Test
+    public void prefetchRespectsBudgetAndSkipsKnownTiles() {
+        mHost.shown.add(Tile.key(0, 6, 0));
+        mHost.pending.add(Tile.key(0, 7, 0));
+        mHost.cached.add(Tile.key(0, 8, 0));
+
+        mEngine.prefetchFlingPath(SET, 0, 0, 0, 600, 0, VIEW_SIZE, VIEW_SIZE, 10);
+
+        assertEquals(10, mHost.prefetched.size());
+        assertFalse(contains(mHost.prefetched, 6, 0));
+        assertFalse(contains(mHost.prefetched, 7, 0));
+        assertFalse(contains(mHost.prefetched, 8, 0));
+        for (Request request : mHost.prefetched) {
+            assertTrue(request.col >= 6);
+        }
+    }
+
+    @Test
+    public void prefetchWithoutViewportDoesNothing() {
+        mEngine.prefetchFlingPath(SET, 0, 0, 0, 600, 0, 0, VIEW_SIZE, 100);
+
+        assertEquals(0, mHost.prefetched.size());
+    }
+
+    @Test
+    public void prefetchBudgetIsBoundByCacheAndLimit() {
+        // A tile of 100 x 100 pixels takes 40000 bytes.
+        assertEquals(5, TileLoadEngine.prefetchBudget(SET, 400000));
+        assertEquals(TileLoadEngine.MAX_PREFETCH_TILES, TileLoadEngine.prefetchBudget(SET, 64 * 1024 * 1024));
+    }
+
+    private static void assertRange(int left, int top, int right, int bottom, TileRange range) {
+        assertEquals("left", left, range.left);
+        assertEquals("top", top, range.top);
+        assertEquals("right", right, range.right);
+        assertEquals("bottom", bottom, range.bottom);
+    }
+
+    private static boolean contains(List<Request> requests, int col, int row) {
+        for (Request request : requests) {
+            if (request.col == col && request.row == row) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Request lowestPriority(List<Request> requests) {
+        Request lowest = null;
+        for (Request request : requests) {
+            if (lowest == null || request.priority < lowest.priority) {
+                lowest = request;
+            }
+        }
+        return lowest;
+    }
+
+    private static List<Long> keys(List<Request> requests) {
+        final List<Long> keys = new ArrayList<Long>();
+        for (Request request : requests) {
+            keys.add(request.key());
+        }
+        return keys;
+    }
+
+    private static class Request {
+        final int level;
+        final int col;
+        final int row;
+        final long priority;
+
+        Request(int level, int col, int row, long priority) {
+            this.level = level;
+            this.col = col;
+            this.row = row;
+            this.priority = priority;
+        }
+
+        long key() {
+            return Tile.key(level, col, row);
+        }
+    }
+
+    /** Keeps tile state in sets and records the calls of the engine. */
+    private static class FakeHost implements TileLoadEngine.Host {
+        final Set<Long> shown = new HashSet<Long>();
+        final Set<Long> pending = new HashSet<Long>();
+        final Set<Long> cached = new HashSet<Long>();
+
+        final List<Request> scheduled = new ArrayList<Request>();
+        final List<Request> prefetched = new ArrayList<Request>();
+        final List<Request> reprioritized = new ArrayList<Request>();
+        final List<TileRange> retained = new ArrayList<TileRange>();
+        final List<Integer> retainedLevels = new ArrayList<Integer>();
+
+        void clearCalls() {
+            scheduled.clear();
+            prefetched.clear();
+            reprioritized.clear();
+            retained.clear();
+            retainedLevels.clear();
+        }
+
+        @Override
+        public boolean isShown(int level, int col, int row) {
+            return shown.contains(Tile.key(level, col, row));
+        }
+
+        @Override
+        public boolean isPending(int level, int col, int row) {
+            return pending.contains(Tile.key(level, col, row));
+        }
+
+        @Override
+        public boolean isCached(int level, int col, int row) {
+            return cached.contains(Tile.key(level, col, row));
+        }
+
+        @Override
+        public boolean showCached(int level, int col, int row) {
+            final long key = Tile.key(level, col, row);
+            if (!cached.contains(key)) {
+                return false;
+            }
+
+            shown.add(key);
+            return true;
+        }
+
+        @Override
+        public void schedule(int level, int col, int row, long priority) {
+            pending.add(Tile.key(level, col, row));
+            scheduled.add(new Request(level, col, row, priority));
+        }
+
+        @Override
+        public void reprioritize(int level, int col, int row, long priority) {
+            reprioritized.add(new Request(level, col, row, priority));
+        }
+
+        @Override
+        public void schedulePrefetch(int level, int col, int row, long priority) {
+            pending.add(Tile.key(level, col, row));
+            prefetched.add(new Request(level, col, row, priority));
+        }
+
+        @Override
+        public void retain(int level, TileRange range) {
+            final TileRange copy = new TileRange();
+            copy.set(range);
+            retained.add(copy);
+            retainedLevels.add(level);
+
+            for (Iterator<Long> it = pending.iterator(); it.hasNext(); ) {
+                final long key = it.next();
+                if (Tile.levelOf(key) != level || !range.contains(Tile.xOf(key), Tile.yOf(key))) {
+                    it.remove();
+                }
+            }
+        }
+    }
+}
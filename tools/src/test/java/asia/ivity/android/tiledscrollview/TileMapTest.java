@@ -0,0 +1,312 @@
+package asia.ivity.android.tiledscrollview;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+public class TileMapTest {
+    @Test
+    public void putGetRemove() {
+        final TileMap<String> map = new TileMap<String>();
+        final long a = Tile.key(0, 1, 2);
+        final long b = Tile.key(1, 1, 2);
+
+        assertTrue(map.isEmpty());
+        assertNull(map.put(a, "a"));
+        assertNull(map.put(b, "b"));
+
+        assertEquals(2, map.size());
+        assertEquals("a", map.get(a));
+        assertEquals("b", map.get(b));
+        assertTrue(map.containsKey(a));
+        assertFalse(map.containsKey(Tile.key(2, 1, 2)));
+
+        assertEquals("a", map.put(a, "a2"));
+        assertEquals(2, map.size());
+        assertEquals("a2", map.get(a));
+
+        assertEquals("a2", map.remove(a));
+        assertNull(map.remove(a));
+        assertNull(map.get(a));
+        assertEquals(1, map.size());
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(b));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsNegativeKeys() {
+        new TileMap<String>().put(Tile.key(32768, 0, 0), "x");
+    }
+
+    @Test(expected = NullPointerException.class)
+    public void rejectsNullValues() {
+        new TileMap<String>().put(0, null);
+    }
+
+    @Test
+    public void removedSlotKeepsProbeChainIntact() {
+        final long[] colliding = collidingKeys(3);
+        final TileMap<Long> map = new TileMap<Long>();
+        for (long key : colliding) {
+            map.put(key, key);
+        }
+
+        final int first = map.indexOf(colliding[0]);
+        assertEquals((first + 1) % map.slotCount(), map.indexOf(colliding[1]));
+
+        // The first key leaves a tombstone the others are still found behind.
+        assertEquals(Long.valueOf(colliding[0]), map.remove(colliding[0]));
+        assertTrue(map.keyAt(first) < 0);
+        assertNull(map.valueAt(first));
+        assertEquals(Long.valueOf(colliding[1]), map.get(colliding[1]));
+        assertEquals(Long.valueOf(colliding[2]), map.get(colliding[2]));
+
+        // Tombstones are not refilled, so the key comes back in another slot.
+        map.put(colliding[0], colliding[0]);
+        assertTrue(map.indexOf(colliding[0]) != first);
+        assertEquals(3, map.size());
+        for (long key : colliding) {
+            assertEquals(Long.valueOf(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void removeAtWhileWalkingSlots() {
+        final TileMap<Long> map = new TileMap<Long>();
+        for (int x = 0; x < 100; x++) {
+            map.put(Tile.key(0, x, 0), (long) x);
+        }
+
+        for (int slot = 0; slot < map.slotCount(); slot++) {
+            if (map.keyAt(slot) >= 0 && Tile.xOf(map.keyAt(slot)) % 2 == 0) {
+                assertEquals(Long.valueOf(Tile.xOf(map.keyAt(slot))), map.removeAt(slot));
+            }
+        }
+
+        assertEquals(50, map.size());
+        for (int x = 0; x < 100; x++) {
+            assertEquals(x % 2 == 0 ? null : Long.valueOf(x), map.get(Tile.key(0, x, 0)));
+        }
+
+        final int slot = map.indexOf(Tile.key(0, 1, 0));
+        assertEquals(Long.valueOf(1), map.removeAt(slot));
+        assertNull(map.removeAt(slot));
+        assertEquals(49, map.size());
+    }
+
+    @Test
+    public void growsAndKeepsEntries() {
+        final TileMap<Long> map = new TileMap<Long>();
+        final int initialSlots = map.slotCount();
+
+        for (int i = 0; i < 10000; i++) {
+            map.put(Tile.key(i % 7, i, i / 3), (long) i);
+        }
+
+        assertEquals(10000, map.size());
+        assertTrue(map.slotCount() > initialSlots);
+        assertEquals(0, map.slotCount() & (map.slotCount() - 1));
+        assertTrue(map.size() <= map.slotCount() / 2);
+        for (int i = 0; i < 10000; i++) {
+            assertEquals(Long.valueOf(i), map.get(Tile.key(i % 7, i, i / 3)));
+        }
+    }
+
+    @Test
+    public void churnDoesNotGrowTheTable() {
+        final TileMap<Long> map = new TileMap<Long>();
+
+        // Tombstones are dropped when the table is rehashed, so a small working set stays small.
+        for (int i = 0; i < 100000; i++) {
+            map.put(Tile.key(0, i, 0), (long) i);
+            if (i >= 8) {
+                map.remove(Tile.key(0, i - 8, 0));
+            }
+        }
+
+        assertEquals(8, map.size());
+        assertTrue("slots: " + map.slotCount(), map.slotCount() <= 64);
+    }
+
+    @Test
+    public void presizedMapHoldsExpectedEntriesWithoutGrowing() {
+        final TileMap<Long> map = new TileMap<Long>(1000);
+        final int slots = map.slotCount();
+
+        for (int i = 0; i < 1000; i++) {
+            map.put(Tile.key(0, i, i), (long) i);
+        }
+
+        assertEquals(slots, map.slotCount());
+    }
+
+    @Test
+    public void keysAtTheLimits() {
+        final TileMap<String> map = new TileMap<String>();
+        final long[] keys = {
+                Tile.key(0, 0, 0),
+                Tile.key(0, 0xffffff, 0),
+                Tile.key(0, 0, 0xffffff),
+                Tile.key(0, 0xffffff, 0xffffff),
+                Tile.key(32767, 0, 0),
+                Tile.key(32767, 0xffffff, 0xffffff),
+        };
+
+        for (long key : keys) {
+            map.put(key, Long.toHexString(key));
+        }
+
+        assertEquals(keys.length, map.size());
+        for (long key : keys) {
+            assertEquals(Long.toHexString(key), map.get(key));
+        }
+    }
+
+    @Test
+    public void behavesLikeHashMap() {
+        final Random random = new Random(42);
+        final TileMap<Integer> map = new TileMap<Integer>();
+        final Map<Long, Integer> expected = new HashMap<Long, Integer>();
+
+        for (int i = 0; i < 200000; i++) {
+            // A small key space, so keys are hit again and again.
+            final long key = Tile.key(random.nextInt(4), random.nextInt(40), random.nextInt(40));
+
+            switch (random.nextInt(4)) {
+                case 0:
+                case 1:
+                    assertEquals(expected.put(key, i), map.put(key, i));
+                    break;
+                case 2:
+                    assertEquals(expected.remove(key), map.remove(key));
+                    break;
+                default:
+                    assertEquals(expected.get(key), map.get(key));
+                    break;
+            }
+            assertEquals(expected.size(), map.size());
+
+            if (i % 10000 == 0) {
+                assertSameEntries(expected, map);
+            }
+        }
+
+        assertSameEntries(expected, map);
+    }
+
+    @Test
+    public void readerSeesConsistentValuesDuringWrites() throws InterruptedException {
+        final TileMap<Long> map = new TileMap<Long>();
+
+        // Stable keys are never removed and must be found throughout, even while the table grows.
+        final int stableCount = 64;
+        for (int i = 0; i < stableCount; i++) {
+            map.put(Tile.key(1, i, 0), (long) i);
+        }
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final Thread reader = new Thread() {
+            @Override
+            public void run() {
+                final Random random = new Random(7);
+                while (!done.get() && failure.get() == null) {
+                    final int stable = random.nextInt(stableCount);
+                    final Long stableValue = map.get(Tile.key(1, stable, 0));
+                    if (stableValue == null || stableValue != stable) {
+                        failure.set("stable key " + stable + " read as " + stableValue);
+                    }
+
+                    // Churned keys may be missing, but never hold another key's value.
+                    final int churned = random.nextInt(20000);
+                    final Long churnedValue = map.get(Tile.key(0, churned, 0));
+                    if (churnedValue != null && churnedValue != churned) {
+                        failure.set("key " + churned + " read as " + churnedValue);
+                    }
+
+                    if (map.size() < 0) {
+                        failure.set("negative size");
+                    }
+                }
+            }
+        };
+        reader.start();
+
+        final List<Long> live = new ArrayList<Long>();
+        for (int i = 0; i < 20000; i++) {
+            final long key = Tile.key(0, i, 0);
+            map.put(key, (long) i);
+            live.add(key);
+
+            if (live.size() > 1000) {
+                map.remove(live.remove(0));
+            }
+        }
+        for (int i = 0; i < 20000; i += 3) {
+            map.remove(Tile.key(0, i, 0));
+        }
+
+        done.set(true);
+        reader.join();
+
+        if (failure.get() != null) {
+            fail(failure.get());
+        }
+    }
+
+    private static void assertSameEntries(Map<Long, Integer> expected, TileMap<Integer> map) {
+        int found = 0;
+        for (int slot = 0; slot < map.slotCount(); slot++) {
+            final long key = map.keyAt(slot);
+            if (key < 0) {
+                assertNull(map.valueAt(slot));
+                continue;
+            }
+
+            assertEquals(expected.get(key), map.valueAt(slot));
+            found++;
+        }
+        assertEquals(expected.size(), found);
+    }
+
+    /** @return keys that all start probing at the same slot of a table of the minimum size. */
+    private static long[] collidingKeys(int count) {
+        final long[] keys = new long[count];
+        int found = 0;
+        int home = -1;
+
+        for (int x = 0; found < count; x++) {
+            final long key = Tile.key(0, x, 0);
+
+            // Alone in a fresh map, a key sits in the slot its hash points to.
+            final TileMap<Long> probe = new TileMap<Long>();
+            probe.put(key, key);
+            final int slot = probe.indexOf(key);
+
+            if (home < 0) {
+                home = slot;
+            }
+            if (slot == home) {
+                keys[found++] = key;
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,284 @@
+package asia.ivity.android.tiledscrollview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+public class TileRegionTrackerTest {
+    private FakeHost mHost;
+    private TileRegionTracker mTracker;
+
+    @Before
+    public void setUp() {
+        mHost = new FakeHost();
+        mTracker = new TileRegionTracker(mHost);
+    }
+
+    @Test
+    public void cachedOnlyRegionCompletesAfterTheCallReturns() {
+        for (int col = 0; col <= 2; col++) {
+            mHost.cached.add(Tile.key(0, col, 0));
+        }
+        final RecordingListener listener = new RecordingListener();
+
+        final TileRegionRequest request = mTracker.request(0, range(0, 0, 2, 0), listener);
+
+        assertEquals(0, mHost.scheduled.size());
+        assertTrue(request.isDone());
+        assertEquals(3, request.getLoadedCount());
+        assertEquals(0, listener.completed);
+
+        mHost.runPosted();
+        assertEquals(1, listener.completed);
+        assertEquals(0, listener.progress.size());
+        assertEquals(0, mTracker.getWaitingTileCount());
+    }
+
+    @Test
+    public void emptyRegionCompletes() {
+        final TileRange empty = new TileRange();
+        empty.right = -1;
+        empty.bottom = -1;
+        final RecordingListener listener = new RecordingListener();
+
+        final TileRegionRequest request = mTracker.request(0, empty, listener);
+        mHost.runPosted();
+
+        assertEquals(0, request.getTileCount());
+        assertEquals(1, listener.completed);
+    }
+
+    @Test
+    public void reportsProgressUntilComplete() {
+        mHost.cached.add(Tile.key(0, 0, 0));
+        final RecordingListener listener = new RecordingListener();
+
+        final TileRegionRequest request = mTracker.request(0, range(0, 0, 1, 1), listener);
+
+        // Missing tiles are scheduled in rows from the top left.
+        assertEquals(3, mHost.scheduled.size());
+        assertEquals(Tile.key(0, 1, 0), mHost.scheduled.get(0).key());
+        assertEquals(0, mHost.scheduled.get(0).priority);
+        assertEquals(Tile.key(0, 1, 1), mHost.scheduled.get(2).key());
+        assertEquals(2, mHost.scheduled.get(2).priority);
+
+        mTracker.onTileCached(new Tile(0, 1, 0), true);
+        mTracker.onTileCached(new Tile(0, 0, 1), false);
+        assertEquals(0, listener.completed);
+        mTracker.onTileCached(new Tile(0, 1, 1), true);
+
+        assertEquals("[2/4, 3/4, 4/4]", listener.progress.toString());
+        assertEquals(1, listener.completed);
+        assertEquals(3, request.getLoadedCount());
+        assertEquals(1, request.getFailedCount());
+        assertTrue(request.isDone());
+        assertEquals(0, mHost.posted.size());
+
+        // Tiles delivered again, e.g. for the viewport, are not counted twice.
+        mTracker.onTileCached(new Tile(0, 1, 1), true);
+        assertEquals(3, listener.progress.size());
+        assertEquals(1, listener.completed);
+    }
+
+    @Test
+    public void cancelMidwayUnpinsRemainingTiles() {
+        final RecordingListener listener = new RecordingListener();
+        final TileRegionRequest request = mTracker.request(0, range(0, 0, 3, 0), listener);
+
+        mTracker.onTileCached(new Tile(0, 0, 0), true);
+        request.cancel();
+
+        assertTrue(request.isCancelled());
+        assertEquals(3, mHost.unpinned.size());
+        assertFalse(mHost.unpinned.contains(Tile.key(0, 0, 0)));
+        assertEquals(0, mTracker.getWaitingTileCount());
+
+        // Decodes that were already running end without callbacks.
+        mTracker.onTileCached(new Tile(0, 1, 0), true);
+        assertEquals(1, listener.progress.size());
+        assertEquals(0, listener.completed);
+        assertEquals(1, request.getLoadedCount());
+
+        request.cancel();
+        assertEquals(3, mHost.unpinned.size());
+    }
+
+    @Test
+    public void cancelAfterCompletionDoesNothing() {
+        final RecordingListener listener = new RecordingListener();
+        final TileRegionRequest request = mTracker.request(0, range(0, 0, 0, 0), listener);
+        mTracker.onTileCached(new Tile(0, 0, 0), true);
+
+        request.cancel();
+
+        assertFalse(request.isCancelled());
+        assertEquals(0, mHost.unpinned.size());
+        assertEquals(1, listener.completed);
+    }
+
+    @Test
+    public void overlappingRegionsShareTiles() {
+        final RecordingListener first = new RecordingListener();
+        final RecordingListener second = new RecordingListener();
+        final TileRegionRequest a = mTracker.request(0, range(0, 0, 1, 0), first);
+        final TileRegionRequest b = mTracker.request(0, range(1, 0, 2, 0), second);
+
+        assertEquals(3, mTracker.getWaitingTileCount());
+
+        // One decode of the shared tile counts for both.
+        mTracker.onTileCached(new Tile(0, 1, 0), true);
+        assertEquals("[1/2]", first.progress.toString());
+        assertEquals("[1/2]", second.progress.toString());
+
+        // The shared tile stays pinned while the other region waits for it.
+        mTracker.onTileCached(new Tile(0, 0, 0), true);
+        final TileRegionRequest c = mTracker.request(0, range(2, 0, 3, 0), null);
+        b.cancel();
+        assertFalse(mHost.unpinned.contains(Tile.key(0, 2, 0)));
+        c.cancel();
+        assertTrue(mHost.unpinned.contains(Tile.key(0, 2, 0)));
+
+        assertEquals(1, first.completed);
+        assertTrue(a.isDone());
+        assertEquals(0, second.completed);
+        assertEquals(0, mTracker.getWaitingTileCount());
+    }
+
+    @Test
+    public void cancellingOneOverlappingRegionKeepsTheOther() {
+        final RecordingListener second = new RecordingListener();
+        final TileRegionRequest a = mTracker.request(0, range(0, 0, 1, 0), null);
+        mTracker.request(0, range(1, 0, 2, 0), second);
+
+        a.cancel();
+        assertEquals(1, mHost.unpinned.size());
+        assertTrue(mHost.unpinned.contains(Tile.key(0, 0, 0)));
+
+        mTracker.onTileCached(new Tile(0, 1, 0), true);
+        mTracker.onTileCached(new Tile(0, 2, 0), true);
+        assertEquals("[1/2, 2/2]", second.progress.toString());
+        assertEquals(1, second.completed);
+    }
+
+    @Test
+    public void abandonEndsAllRequestsWithoutCallbacks() {
+        final RecordingListener first = new RecordingListener();
+        final RecordingListener second = new RecordingListener();
+        final TileRegionRequest a = mTracker.request(0, range(0, 0, 1, 0), first);
+        final TileRegionRequest b = mTracker.request(1, range(0, 0, 1, 1), second);
+
+        mTracker.abandonAll();
+
+        assertTrue(a.isCancelled());
+        assertTrue(b.isCancelled());
+        assertEquals(0, mTracker.getWaitingTileCount());
+        // Pins go away with the decodes the caller cancels.
+        assertEquals(0, mHost.unpinned.size());
+
+        mTracker.onTileCached(new Tile(0, 0, 0), true);
+        mTracker.onTileCached(new Tile(1, 0, 0), true);
+        assertEquals(0, first.progress.size());
+        assertEquals(0, second.progress.size());
+        assertEquals(0, first.completed + second.completed);
+    }
+
+    @Test
+    public void cachedOnlyRegionCancelledBeforeCompletionStaysSilent() {
+        mHost.cached.add(Tile.key(0, 0, 0));
+        final RecordingListener listener = new RecordingListener();
+        final TileRegionRequest request = mTracker.request(0, range(0, 0, 0, 0), listener);
+
+        request.cancel();
+        mHost.runPosted();
+
+        assertEquals(0, listener.completed);
+    }
+
+    private static TileRange range(int left, int top, int right, int bottom) {
+        final TileRange range = new TileRange();
+        range.left = left;
+        range.top = top;
+        range.right = right;
+        range.bottom = bottom;
+        return range;
+    }
+
+    private static class Scheduled {
+        final int level;
+        final int col;
+        final int row;
+        final long priority;
+
+        Scheduled(int level, int col, int row, long priority) {
+            this.level = level;
+            this.col = col;
+            this.row = row;
+            this.priority = priority;
+        }
+
+        long key() {
+            return Tile.key(level, col, row);
+        }
+    }
+
+    private static class FakeHost implements TileRegionTracker.Host {
+        final Set<Long> cached = new HashSet<Long>();
+        final List<Scheduled> scheduled = new ArrayList<Scheduled>();
+        final Set<Long> unpinned = new HashSet<Long>();
+        final List<Runnable> posted = new ArrayList<Runnable>();
+
+        void runPosted() {
+            final List<Runnable> actions = new ArrayList<Runnable>(posted);
+            posted.clear();
+            for (Runnable action : actions) {
+                action.run();
+            }
+        }
+
+        @Override
+        public boolean isCached(int level, int col, int row) {
+            return cached.contains(Tile.key(level, col, row));
+        }
+
+        @Override
+        public void scheduleRegion(int level, int col, int row, long priority) {
+            scheduled.add(new Scheduled(level, col, row, priority));
+        }
+
+        @Override
+        public void unpin(int level, int col, int row) {
+            unpinned.add(Tile.key(level, col, row));
+        }
+
+        @Override
+        public void post(Runnable action) {
+            posted.add(action);
+        }
+    }
+
+    private static class RecordingListener implements TileRegionRequest.Listener {
+        final List<String> progress = new ArrayList<String>();
+        int completed;
+
+        @Override
+        public void onProgress(TileRegionRequest request, int done, int total) {
+            progress.add(done + "/" + total);
+        }
+
+        @Override
+        public void onComplete(TileRegionRequest request) {
+            completed++;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package asia.ivity.android.tiledscrollview;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Sebastian Roth <sebastian.roth@gmail.com>
+ */
+public class TileTest {
+    private static final int MAX_COORDINATE = 0xffffff;
+
+    @Test
+    public void keyRoundTrips() {
+        final int[] levels = {0, 1, 2, 255, 256, Tile.MAX_LEVEL};
+        final int[] coordinates = {0, 1, 2, 0xff, 0x100, 0xffff, 0x10000, MAX_COORDINATE - 1, MAX_COORDINATE};
+
+        for (int level : levels) {
+            for (int x : coordinates) {
+                for (int y : coordinates) {
+                    final long key = Tile.key(level, x, y);
+
+                    assertTrue("negative key for " + level + "/" + x + "/" + y, key >= 0);
+                    assertEquals(level, Tile.levelOf(key));
+                    assertEquals(x, Tile.xOf(key));
+                    assertEquals(y, Tile.yOf(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void keysAreDistinctAtTheLimits() {
+        final int[] levels = {0, 1, Tile.MAX_LEVEL - 1, Tile.MAX_LEVEL};
+        final int[] coordinates = {0, 1, MAX_COORDINATE - 1, MAX_COORDINATE};
+
+        final Set<Long> keys = new HashSet<Long>();
+        for (int level : levels) {
+            for (int x : coordinates) {
+                for (int y : coordinates) {
+                    assertTrue(keys.add(Tile.key(level, x, y)));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void keyOfTileMatchesStaticKey() {
+        final Tile tile = new Tile(3, 1234, 5678);
+
+        assertEquals(Tile.key(3, 1234, 5678), tile.key());
+    }
+
+    @Test
+    public void maxLevelIsTheHighestWithNonNegativeKeys() {
+        assertEquals(32767, Tile.MAX_LEVEL);
+        assertTrue(Tile.key(Tile.MAX_LEVEL, MAX_COORDINATE, MAX_COORDINATE) >= 0);
+    }
+
+    @Test
+    public void checkLevelAcceptsLevelsUpToTheMax() {
+        Tile.checkLevel(0);
+        Tile.checkLevel(Tile.MAX_LEVEL);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkLevelRejectsNegativeLevels() {
+        Tile.checkLevel(-1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void checkLevelRejectsLevelsAboveTheMax() {
+        Tile.checkLevel(Tile.MAX_LEVEL + 1);
+    }
+
+    @Test
+    public void levelAboveLimitGivesNegativeKey() {
+        // TileMap relies on this to reject such keys.
+        assertTrue(Tile.key(Tile.MAX_LEVEL + 1, 0, 0) < 0);
+    }
+}